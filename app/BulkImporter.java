@@ -0,0 +1,309 @@
+package ca.qc.cvm.dba.persinteret.app;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import ca.qc.cvm.dba.persinteret.dao.PersonDAO;
+import ca.qc.cvm.dba.persinteret.dao.PhotoCodec;
+import ca.qc.cvm.dba.persinteret.dao.Thumbnails;
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Importation en lot de fiches et de photos.
+ *
+ * Le traitement se fait en 4 tapes, relies par des files bornes (quand une tape
+ * est en retard, les tapes prcdentes bloquent au lieu d'accumuler en mmoire) :
+ *  1. lecture/analyse des lignes (thread appelant)
+ *  2. dcodage et rencodage des photos (pool de threads)
+ *  3. insertion des fiches par lots avec insertMany (un thread)
+ *  4. tlversement des photos dans GridFS (pool de threads, nombre de tlversements en cours born)
+ */
+public class BulkImporter {
+	private static final Record END_OF_RECORDS = new Record(null, null);
+	private static final Person END_OF_PEOPLE = new Person();
+
+	private final int workers;
+	private final int batchSize;
+	private final int uploaders;
+	private final int queueCapacity;
+
+	/**
+	 * Transforme une ligne en enregistrement  importer
+	 */
+	public interface Parser {
+		/**
+		 * @return l'enregistrement, ou null si la ligne doit tre ignore
+		 */
+		Record parse(String line);
+	}
+
+	/**
+	 * Une personne  importer et le chemin de sa photo
+	 */
+	public static class Record {
+		private final Person person;
+		private final String imagePath;
+
+		public Record(Person person, String imagePath) {
+			this.person = person;
+			this.imagePath = imagePath;
+		}
+	}
+
+	public BulkImporter() {
+		this(Runtime.getRuntime().availableProcessors(), 500, 4, 1000);
+	}
+
+	/**
+	 * @param workers nombre de threads de dcodage/encodage des photos
+	 * @param batchSize nombre de fiches par insertMany
+	 * @param uploaders nombre de tlversements GridFS simultans
+	 * @param queueCapacity taille des files entre les tapes
+	 */
+	public BulkImporter(int workers, int batchSize, int uploaders, int queueCapacity) {
+		this.workers = workers;
+		this.batchSize = batchSize;
+		this.uploaders = uploaders;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Importe toutes les lignes et attend la fin des tlversements
+	 *
+	 * @param lines lignes  importer
+	 * @param parser analyseur de ligne
+	 * @return le rapport de dbit
+	 */
+	public Report run(Iterable<String> lines, Parser parser) throws InterruptedException {
+		final Report report = new Report();
+		final BlockingQueue<Record> parsed = new ArrayBlockingQueue<Record>(queueCapacity);
+		final BlockingQueue<Person> encoded = new ArrayBlockingQueue<Person>(queueCapacity);
+		final Semaphore pendingUploads = new Semaphore(uploaders * 2);
+		final ExecutorService encoders = Executors.newFixedThreadPool(workers);
+		final ExecutorService uploadPool = Executors.newFixedThreadPool(uploaders);
+
+		// 2. Dcodage/encodage
+		for (int i = 0; i < workers; i++) {
+			encoders.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						Record record = parsed.take();
+
+						while (record != END_OF_RECORDS) {
+							// Une fiche dont la photo n'a pu tre lue est compte en erreur, et non insre
+							if (encode(record, report)) {
+								encoded.put(record.person);
+							}
+							record = parsed.take();
+						}
+
+						encoded.put(END_OF_PEOPLE);
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+
+		// 3. Insertion par lots, puis 4. tlversement
+		Thread writer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					List<Person> batch = new ArrayList<Person>(batchSize);
+					int finishedWorkers = 0;
+
+					while (finishedWorkers < workers) {
+						Person person = encoded.take();
+
+						if (person == END_OF_PEOPLE) {
+							finishedWorkers++;
+						}
+						else {
+							batch.add(person);
+						}
+
+						if (batch.size() >= batchSize || (finishedWorkers == workers && !batch.isEmpty())) {
+							write(batch, report, uploadPool, pendingUploads);
+							batch = new ArrayList<Person>(batchSize);
+						}
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, "bulk-writer");
+		writer.start();
+
+		// 1. Lecture
+		try {
+			for (String line : lines) {
+				Record record;
+
+				try {
+					record = parser.parse(line);
+				}
+				catch (RuntimeException e) {
+					// Ligne mal forme : ignore et compte, l'importation continue
+					report.rejected.incrementAndGet();
+					e.printStackTrace();
+					continue;
+				}
+
+				if (record != null) {
+					report.parsed.incrementAndGet();
+					parsed.put(record);
+				}
+			}
+		}
+		finally {
+			// Les marqueurs de fin sont toujours envoys : sans eux, encodeurs et criture attendraient indfiniment
+			try {
+				for (int i = 0; i < workers; i++) {
+					parsed.put(END_OF_RECORDS);
+				}
+
+				writer.join();
+			}
+			finally {
+				if (writer.isAlive()) {
+					// Interrompu avant la fin : les tapes suivantes sont arrtes
+					writer.interrupt();
+					encoders.shutdownNow();
+					uploadPool.shutdownNow();
+				}
+				else {
+					encoders.shutdown();
+					uploadPool.shutdown();
+				}
+			}
+		}
+
+		uploadPool.awaitTermination(1, TimeUnit.HOURS);
+		report.finish();
+
+		return report;
+	}
+
+	/**
+	 * @return false si la photo n'a pu tre lue ou encode (la fiche n'est alors pas insre)
+	 */
+	private boolean encode(Record record, Report report) {
+		try {
+			if (record.imagePath != null) {
+				BufferedImage image = ImageIO.read(new File(record.imagePath));
+
+				if (image != null) {
+					record.person.setImageData(PhotoCodec.getDefault().encode(image));
+					record.person.setThumbnailData(Thumbnails.create(image));
+				}
+			}
+
+			report.encoded.incrementAndGet();
+			return true;
+		}
+		catch (Exception e) {
+			report.failed.incrementAndGet();
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private void write(List<Person> batch, final Report report, ExecutorService uploadPool, final Semaphore pendingUploads) throws InterruptedException {
+		List<Person> inserted = new ArrayList<Person>();
+
+		try {
+			inserted = PersonDAO.saveAll(batch);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		report.inserted.addAndGet(inserted.size());
+		report.failed.addAndGet(batch.size() - inserted.size());
+
+		for (final Person person : inserted) {
+			if (person.getImageData() != null) {
+				pendingUploads.acquire();
+				uploadPool.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							PersonDAO.savePhoto(person);
+							report.uploaded.incrementAndGet();
+						}
+						catch (Exception e) {
+							report.failed.incrementAndGet();
+							e.printStackTrace();
+						}
+						finally {
+							pendingUploads.release();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Rapport de dbit d'une importation
+	 */
+	public static class Report {
+		private final long start = System.nanoTime();
+		private long end;
+		private final AtomicLong parsed = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong encoded = new AtomicLong();
+		private final AtomicLong inserted = new AtomicLong();
+		private final AtomicLong uploaded = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+
+		private void finish() {
+			end = System.nanoTime();
+		}
+
+		public long getInserted() {
+			return inserted.get();
+		}
+
+		public long getFailed() {
+			return failed.get();
+		}
+
+		/**
+		 * @return nombre de lignes mal formes (ignores)
+		 */
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		public double getSeconds() {
+			return ((end == 0 ? System.nanoTime() : end) - start) / 1e9;
+		}
+
+		public String toString() {
+			double seconds = getSeconds();
+
+			return String.format("%d lues, %d rejetes, %d encodes, %d insres, %d photos, %d erreurs en %.1f s (%.0f fiches/s)",
+					parsed.get(), rejected.get(), encoded.get(), inserted.get(), uploaded.get(), failed.get(), seconds,
+					seconds > 0 ? inserted.get() / seconds : 0);
+		}
+	}
+}
@@ -1,17 +1,11 @@
 package ca.qc.cvm.dba.persinteret.app;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
 
-import javax.imageio.ImageIO;
-
 import ca.qc.cvm.dba.correctionserver.lib.BaseCorClient;
+import ca.qc.cvm.dba.persinteret.dao.OutboxRelay;
 import ca.qc.cvm.dba.persinteret.dao.PersonDAO;
 import ca.qc.cvm.dba.persinteret.entity.Person;
 
@@ -53,6 +47,7 @@ public class CorClient extends BaseCorClient  {
 		String f1 = "";
 		String f2 = "";
 		String f3 = "";
+		List<String> records = new ArrayList<String>();
 		
 		for (String line : info) {
 			if (line.startsWith("RUN;")) {
@@ -66,36 +61,35 @@ public class CorClient extends BaseCorClient  {
 					isFirstLine = false;
 				}
 				else {
+					records.add(line);
+				}
+			}
+		}
+		
+		try {
+			BulkImporter.Report report = new BulkImporter().run(records, new BulkImporter.Parser() {
+				
+				@Override
+				public BulkImporter.Record parse(String line) {
 					StringTokenizer tokenizer = new StringTokenizer(line, ":");
 					String p1 = tokenizer.nextElement().toString();
 					String p2 = tokenizer.nextElement().toString();
 					String p3 = tokenizer.nextElement().toString();
 					String p4 = tokenizer.nextElement().toString();
 					String p5 = tokenizer.nextElement().toString();
-	
-					
-					byte[] imageInByte = null;
-					BufferedImage image;
-					try {
-						File f = new File(p4);
-						image = ImageIO.read(f);
-						ByteArrayOutputStream b =new ByteArrayOutputStream();
-						ImageIO.write(image, "jpg", b );
-						imageInByte = b.toByteArray();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
 					
 					List<String> p6 = new ArrayList<String>();
 					while (tokenizer.hasMoreElements()) {
 						p6.add(tokenizer.nextElement().toString());
 					}
 					
-					
-					Person p = new Person(p1, p2, p3, p5, p6, imageInByte);
-					PersonDAO.save(p);
+					return new BulkImporter.Record(new Person(p1, p2, p3, p5, p6, null), p4);
 				}
-			}
+			});
+			res.add("Importation : " + report);
+		}
+		catch (InterruptedException e) {
+			e.printStackTrace();
 		}
 		
 		count = -1;
@@ -177,6 +171,8 @@ public class CorClient extends BaseCorClient  {
 				Person tmp = p.get(0);
 				tmp.setDateOfBirth(f3);
 				PersonDAO.save(tmp);
+				// Les statistiques vrifies plus bas doivent reflter cette modification
+				OutboxRelay.drain();
 			}
 			
 			p = PersonDAO.getPeopleList("", false, 200);
@@ -1,10 +1,13 @@
 package ca.qc.cvm.dba.persinteret.app;
 
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
 import java.util.List;
+import java.util.Map;
 import java.util.Observer;
 
 import ca.qc.cvm.dba.persinteret.dao.PersonDAO;
+import ca.qc.cvm.dba.persinteret.entity.DashboardStats;
 import ca.qc.cvm.dba.persinteret.entity.Person;
 import ca.qc.cvm.dba.persinteret.event.CommonEvent;
 
@@ -32,7 +35,35 @@ public class Facade {
 	
 	public void processEvent(CommonEvent event) {
 		app.addEvent(event);
-        new Thread(app).start();
+	}
+	
+	/**
+	 * @return mtriques de la file d'vnements (profondeur et temps de traitement)
+	 */
+	public String getEventMetrics() {
+		return String.format("%d en attente, %d traits, %.1f ms en moyenne, %.1f ms au maximum",
+				app.getQueueDepth(), app.getProcessedEventCount(), app.getAverageProcessingMillis(), app.getMaxProcessingMillis());
+	}
+	
+	/**
+	 * @return compteurs du cache de fiches en mmoire (succs, checs, victions)
+	 */
+	public String getPersonCacheMetrics() {
+		return app.getPersonCacheMetrics();
+	}
+	
+	/**
+	 * @return mtriques du relais de l'outbox (entres appliques, fiches en attente, retard)
+	 */
+	public String getOutboxMetrics() {
+		return app.getOutboxMetrics();
+	}
+	
+	/**
+	 * Encode une photo avec le codec configur (format, qualit, taille maximale)
+	 */
+	public byte[] encodePhoto(BufferedImage image) {
+		return app.encodePhoto(image);
 	}
 	
 	public void addObserverClass( PropertyChangeListener pcl) {
@@ -43,10 +74,45 @@ public class Facade {
 		return app.getPeopleList(filterText, withImage, limit);
 	}
 	
+	public List<Person> getPeoplePage(String filterText, String afterName, int limit) {
+		return app.getPeoplePage(filterText, afterName, limit);
+	}
+	
+	public List<String> getPeopleNames(String filterText, String afterName, int limit) {
+		return app.getPeopleNames(filterText, afterName, limit);
+	}
+	
+	public String getPeopleNameAt(String filterText, String afterName, int offset) {
+		return app.getPeopleNameAt(filterText, afterName, offset);
+	}
+	
+	public String getPeopleNameFrom(String filterText, String fromName, int offset) {
+		return app.getPeopleNameFrom(filterText, fromName, offset);
+	}
+	
+	public Map<String, Long> getPeopleAnchors(String filterText) {
+		return app.getPeopleAnchors(filterText);
+	}
+	
+	public long getPeopleCount(String filterText) {
+		return app.getPeopleCount(filterText);
+	}
+	
+	/**
+	 * @return la photo complte dj dcode, ou null
+	 */
+	public BufferedImage getPersonPhoto(String name) {
+		return app.getPersonPhoto(name);
+	}
+	
 	public Person getCurrentPerson() {
 		return app.getCurrentPerson();
 	}
 	
+	public DashboardStats getDashboardStats() {
+		return app.getDashboardStats();
+	}
+	
 	public int getFreeRatio() {
 		return app.getFreeRatio();
 	}
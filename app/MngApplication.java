@@ -1,13 +1,25 @@
 package ca.qc.cvm.dba.persinteret.app;
 
-import java.util.ArrayList;
+import java.awt.image.BufferedImage;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import ca.qc.cvm.dba.persinteret.dao.BerkeleyConnection;
 import ca.qc.cvm.dba.persinteret.dao.MongoConnection;
+import ca.qc.cvm.dba.persinteret.dao.Neo4jConnection;
+import ca.qc.cvm.dba.persinteret.dao.OutboxRelay;
+import ca.qc.cvm.dba.persinteret.dao.PersonCache;
 import ca.qc.cvm.dba.persinteret.dao.PersonDAO;
+import ca.qc.cvm.dba.persinteret.dao.PhotoCodec;
+import ca.qc.cvm.dba.persinteret.dao.SchemaManager;
+import ca.qc.cvm.dba.persinteret.entity.DashboardStats;
 import ca.qc.cvm.dba.persinteret.entity.Person;
 import ca.qc.cvm.dba.persinteret.event.SaveEvent;
 import ca.qc.cvm.dba.persinteret.event.CommonEvent;
@@ -17,29 +29,138 @@ import ca.qc.cvm.dba.persinteret.event.GoToEvent;
 import ca.qc.cvm.dba.persinteret.event.UIEvent;
 import ca.qc.cvm.dba.persinteret.view.FrameMain.Views;
 
+/**
+ * Les vnements sont traits un  la fois, dans l'ordre de soumission, par un seul
+ * thread de longue dure (voir run()). La file est non bloquante : addEvent() ne prend
+ * aucun verrou et rveille le thread de traitement s'il est en attente.
+ */
 public class MngApplication implements Runnable {
-    private List<CommonEvent> eventQueue;
+    private Queue<CommonEvent> eventQueue;
     private Person currentPerson;
+    private Thread eventThread;
+
+    private AtomicInteger queueDepth = new AtomicInteger();
+    private AtomicLong processedEvents = new AtomicLong();
+    private AtomicLong totalProcessingNanos = new AtomicLong();
+    private AtomicLong maxProcessingNanos = new AtomicLong();
 
     private PropertyChangeSupport support;
     
     public MngApplication() {
-    	eventQueue = new ArrayList<CommonEvent>();
+    	eventQueue = new ConcurrentLinkedQueue<CommonEvent>();
     	support = new PropertyChangeSupport(this);
+    	
+    	eventThread = new Thread(this, "event-loop");
+    	eventThread.setDaemon(true);
+    	eventThread.start();
     }
     
     public void addEvent(CommonEvent event) {
-    	synchronized(MngApplication.class) {
-    		eventQueue.add(event);
-    	}
+    	eventQueue.offer(event);
+    	queueDepth.incrementAndGet();
+    	LockSupport.unpark(eventThread);
     }
 
+	/**
+	 * Boucle de traitement des vnements (thread "event-loop").
+	 * Le pool de connexions MongoDB est ouvert, le schma (index) est vrifi et le relais
+	 * de l'outbox est dmarr avant le premier vnement. Le rapport d'utilisation des index
+	 * n'est produit que sur demande (-Dpersinteret.schema.report=true), dans son propre thread.
+	 */
 	public void run() {
-        synchronized (MngApplication.class) {
-            CommonEvent event = eventQueue.remove(0);
-            processEvent(event);
-        }
-    }
+		MongoConnection.warmUp();
+		SchemaManager.ensureSchema();
+		OutboxRelay.start();
+
+		if (Boolean.getBoolean("persinteret.schema.report")) {
+			// Rapport sur demande, hors de la boucle d'vnements
+			Thread report = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					SchemaManager.printReport();
+				}
+			}, "schema-report");
+			report.setDaemon(true);
+			report.start();
+		}
+		
+		while (!Thread.currentThread().isInterrupted()) {
+			CommonEvent event = eventQueue.poll();
+			
+			if (event == null) {
+				LockSupport.park(this);
+			}
+			else {
+				queueDepth.decrementAndGet();
+				long start = System.nanoTime();
+				
+				try {
+					processEvent(event);
+				}
+				catch (Throwable t) {
+					t.printStackTrace();
+				}
+				
+				long elapsed = System.nanoTime() - start;
+				processedEvents.incrementAndGet();
+				totalProcessingNanos.addAndGet(elapsed);
+				
+				long max = maxProcessingNanos.get();
+				while (elapsed > max && !maxProcessingNanos.compareAndSet(max, elapsed)) {
+					max = maxProcessingNanos.get();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return nombre d'vnements en attente de traitement
+	 */
+	public int getQueueDepth() {
+		return queueDepth.get();
+	}
+	
+	/**
+	 * @return nombre d'vnements traits depuis le dmarrage
+	 */
+	public long getProcessedEventCount() {
+		return processedEvents.get();
+	}
+	
+	/**
+	 * @return temps moyen de traitement d'un vnement, en millisecondes
+	 */
+	public double getAverageProcessingMillis() {
+		long count = processedEvents.get();
+		return count == 0 ? 0 : totalProcessingNanos.get() / 1e6 / count;
+	}
+	
+	/**
+	 * @return temps de traitement le plus long observ, en millisecondes
+	 */
+	public double getMaxProcessingMillis() {
+		return maxProcessingNanos.get() / 1e6;
+	}
+	
+	public String getPersonCacheMetrics() {
+		return PersonCache.getStats();
+	}
+	
+	public String getOutboxMetrics() {
+		String metrics = "--";
+		try {
+			metrics = OutboxRelay.getStats();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return metrics;
+	}
+	
+	public byte[] encodePhoto(BufferedImage image) {
+		return PhotoCodec.getDefault().encode(image);
+	}
 	
 	public void addPropertyChangeListener(PropertyChangeListener pcl) {
         support.addPropertyChangeListener(pcl);
@@ -53,13 +174,19 @@ public class MngApplication implements Runnable {
 	private void processEvent(CommonEvent event) {
 		if (event.getType() == CommonEvent.Type.GoTo) {
 			currentPerson = ((GoToEvent)event).getPerson();
+
+			if (currentPerson != null) {
+				// Fiche  jour (servie par le cache si elle a dj t lue)
+				Person fresh = PersonDAO.getPerson(currentPerson.getName());
+				currentPerson = fresh != null ? fresh : currentPerson;
+			}
 			support.firePropertyChange(UIEvent.UIType.GoTo.toString(), null, ((GoToEvent)event).getDestination().toString());
 		}
 		else if (event.getType() == CommonEvent.Type.Back) {
 			support.firePropertyChange( UIEvent.UIType.Back.toString(), null, "back");
 		}
 		else if (event.getType() == CommonEvent.Type.Save) {
-			save(((SaveEvent)event).getPerson());
+			save((SaveEvent)event);
 		}
 		else if (event.getType() == CommonEvent.Type.Delete) {
 			delete(((DeleteEvent)event).getPerson());
@@ -100,12 +227,13 @@ public class MngApplication implements Runnable {
 		}
 	}
 	
-	private void save(Person person) {
+	private void save(SaveEvent event) {
 		boolean success = false;
 		
-		success = PersonDAO.save(person);
+		success = PersonDAO.save(event.getPerson());
 		
 		if (success) {
+			support.firePropertyChange(UIEvent.UIType.Saved.toString(), null, event);
 			support.firePropertyChange(UIEvent.UIType.ShowMessage.toString(), null, "Sauvegarde effectue");
 			support.firePropertyChange(UIEvent.UIType.GoTo.toString(), null, Views.List.toString());
 		}
@@ -120,6 +248,38 @@ public class MngApplication implements Runnable {
 		return peopleList;
 	}
 	
+	public List<Person> getPeoplePage(String filterText, String afterName, int limit) {
+		return PersonDAO.getPeoplePage(filterText, afterName, limit);
+	}
+	
+	public List<String> getPeopleNames(String filterText, String afterName, int limit) {
+		return PersonDAO.getPeopleNames(filterText, afterName, limit);
+	}
+	
+	public String getPeopleNameAt(String filterText, String afterName, int offset) {
+		return PersonDAO.getPeopleNameAt(filterText, afterName, offset);
+	}
+	
+	public String getPeopleNameFrom(String filterText, String fromName, int offset) {
+		return PersonDAO.getPeopleNameFrom(filterText, fromName, offset);
+	}
+	
+	public Map<String, Long> getPeopleAnchors(String filterText) {
+		return PersonDAO.getPeopleAnchors(filterText);
+	}
+	
+	public long getPeopleCount(String filterText) {
+		return PersonDAO.getPeopleCount(filterText);
+	}
+	
+	public BufferedImage getPersonPhoto(String name) {
+		return PersonDAO.getDecodedImage(name);
+	}
+	
+	public DashboardStats getDashboardStats() {
+		return PersonDAO.getDashboardStats();
+	}
+	
 	public int getFreeRatio() {
 		return PersonDAO.getFreeRatio();
 	}
@@ -149,8 +309,10 @@ public class MngApplication implements Runnable {
 	}
 	
 	public void exit() {
+		OutboxRelay.stop();
 		MongoConnection.releaseConnection();
 		BerkeleyConnection.releaseConnection();
+		Neo4jConnection.releaseConnection();
 		System.exit(0);
 	}
 }
@@ -0,0 +1,90 @@
+package ca.qc.cvm.dba.persinteret.app;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import ca.qc.cvm.dba.persinteret.dao.MongoConnection;
+import ca.qc.cvm.dba.persinteret.dao.PersonDAO;
+import ca.qc.cvm.dba.persinteret.dao.PhotoBatchLoader;
+import ca.qc.cvm.dba.persinteret.dao.PhotoCodec;
+
+/**
+ * Petit utilitaire qui estime l'espace conomis si toutes les photos existantes
+ * taient rencodes avec le codec configur (voir PhotoCodec). Rien n'est modifi.
+ * Chaque photo stocke n'est compte qu'une fois, mme si elle est partage.
+ *
+ * Utilisation : java -Dpersinteret.photo.quality=0.8 ca.qc.cvm.dba.persinteret.app.PhotoSavingsReport
+ */
+public class PhotoSavingsReport {
+	private static final int PAGE_SIZE = 100;
+
+	private PhotoCodec codec = PhotoCodec.getDefault();
+	private long photos;
+	private long currentBytes;
+	private long encodedBytes;
+
+	public static void main(String[] args) {
+		PhotoSavingsReport report = new PhotoSavingsReport();
+		report.run(PhotoCodec.getDefault());
+		System.out.println(report);
+		MongoConnection.releaseConnection();
+	}
+
+	/**
+	 * Parcourt toutes les fiches (par pages, dans l'ordre de la liste) et rencode leur photo
+	 */
+	public void run(final PhotoCodec codec) {
+		this.codec = codec;
+		final Set<String> seen = new HashSet<String>();
+		String cursor = null;
+		List<String> names = PersonDAO.getPeopleNames(null, cursor, PAGE_SIZE);
+
+		while (!names.isEmpty()) {
+			// Les photos sont dcodes directement depuis les tampons rutilisables
+			PersonDAO.readImages(names, new PhotoBatchLoader.PhotoReader() {
+
+				@Override
+				public void read(String filename, ByteBuffer data) throws Exception {
+					if (seen.add(filename)) {
+						int length = data.remaining();
+						byte[] encoded = codec.encode(ImageIO.read(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), length)));
+
+						if (encoded != null) {
+							photos++;
+							currentBytes += length;
+							encodedBytes += encoded.length;
+						}
+					}
+				}
+			});
+
+			cursor = names.get(names.size() - 1);
+			names = PersonDAO.getPeopleNames(null, cursor, PAGE_SIZE);
+		}
+	}
+
+	public long getPhotoCount() {
+		return photos;
+	}
+
+	public long getCurrentBytes() {
+		return currentBytes;
+	}
+
+	public long getEncodedBytes() {
+		return encodedBytes;
+	}
+
+	public String toString() {
+		long saved = currentBytes - encodedBytes;
+
+		return String.format("%d photos : %d Ko actuellement, %d Ko en %s (qualit %.2f, max %d o), conomie de %d Ko (%.0f%%)",
+				photos, currentBytes / 1024, encodedBytes / 1024, codec.getFormat(), codec.getQuality(), codec.getMaxBytes(),
+				saved / 1024, currentBytes > 0 ? saved * 100.0 / currentBytes : 0);
+	}
+}
@@ -4,49 +4,61 @@ import java.io.File;
 
 import com.sleepycat.je.Database;
 import com.sleepycat.je.DatabaseConfig;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 
 public class BerkeleyConnection {
-	private static Database connection;
+	private static volatile Database connection;
 	private static Environment environment;
 	private static final String DB_PATH = "database/";
 	private static final String DB_NAME = "personne_db";
 	
 	/**
-	 * Mthode qui permet de retourner une connexion  la base de donnes
+	 * Mthode qui permet de retourner une connexion  la base de donnes.
+	 * Appele par chaque lecture de PersonStore : une fois la base ouverte, aucun verrou n'est pris.
 	 * 
 	 * @return
 	 */
 	public static Database getConnection() {
-		if (connection == null) {
-		 
-	        try {
-	        	File dbPath = new File(DB_PATH);
-	        	
-	        	if (!dbPath.isDirectory()) {
-	        		dbPath.mkdir();
-	        	}
-	        	
-	            // Open the environment, creating one if it does not exist
-	            EnvironmentConfig envConfig = new EnvironmentConfig();
-	            envConfig.setAllowCreate(true);
-	            envConfig.setTransactional(true);
-	            environment = new Environment(new File(DB_PATH), envConfig);
-	 
-	            // Open the database, creating one if it does not exist
-	            DatabaseConfig dbConfig = new DatabaseConfig();
-	            dbConfig.setTransactional(true);
-	            dbConfig.setAllowCreate(true);
-	            
-	            connection = environment.openDatabase(null, DB_NAME, dbConfig);
-	        } 
-	        catch (Exception dbe) {
-	            dbe.printStackTrace();
-	        }
+		Database current = connection;
+		
+		if (current == null) {
+			synchronized (BerkeleyConnection.class) {
+				current = connection;
+				
+				if (current == null) {
+			        try {
+			        	File dbPath = new File(DB_PATH);
+			        	
+			        	if (!dbPath.isDirectory()) {
+			        		dbPath.mkdir();
+			        	}
+			        	
+			            // Open the environment, creating one if it does not exist
+			            EnvironmentConfig envConfig = new EnvironmentConfig();
+			            envConfig.setAllowCreate(true);
+			            envConfig.setTransactional(true);
+			            // Sert de cache local (voir PersonStore) : inutile de forcer un fsync  chaque criture
+			            envConfig.setDurability(Durability.COMMIT_NO_SYNC);
+			            environment = new Environment(new File(DB_PATH), envConfig);
+			 
+			            // Open the database, creating one if it does not exist
+			            DatabaseConfig dbConfig = new DatabaseConfig();
+			            dbConfig.setTransactional(true);
+			            dbConfig.setAllowCreate(true);
+			            
+			            current = environment.openDatabase(null, DB_NAME, dbConfig);
+			            connection = current;
+			        } 
+			        catch (Exception dbe) {
+			            dbe.printStackTrace();
+			        }
+				}
+			}
 		}
 		
-		return connection;
+		return current;
 	}
 	
 	/**
@@ -62,7 +74,7 @@ public class BerkeleyConnection {
 		return valid;
 	}
 	
-	public static void releaseConnection() {
+	public static synchronized void releaseConnection() {
 		if (connection != null) {
 			try {
 				connection.close();
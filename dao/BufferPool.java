@@ -0,0 +1,102 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rserve de ByteBuffer rutilisables, pour la lecture des photos.
+ *
+ * Les tampons sont regroups par capacit (puissances de 2, au moins MIN_CAPACITY), ce qui
+ * permet de rutiliser un mme tampon pour des photos de tailles voisines. La mmoire garde
+ * en rserve est borne (maxPooledBytes) ; un tampon rendu au-del est laiss au GC.
+ *
+ * Les tampons sont allous dans le heap : array() est donc toujours disponible, et le contenu
+ * peut tre pass tel quel au dcodeur d'images, sans copie.
+ */
+public class BufferPool {
+	public static final int MIN_CAPACITY = 16 * 1024;
+
+	private static final BufferPool photos = new BufferPool(8 * 1024 * 1024);
+
+	private final long maxPooledBytes;
+	private final Map<Integer, ArrayDeque<ByteBuffer>> free = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+	private long pooledBytes;
+	private long allocations;
+	private long reuses;
+
+	/**
+	 * @param maxPooledBytes mmoire maximale garde en rserve
+	 */
+	public BufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/**
+	 * @return la rserve partage utilise pour les photos
+	 */
+	public static BufferPool forPhotos() {
+		return photos;
+	}
+
+	/**
+	 * @param size nombre d'octets  recevoir
+	 * @return un tampon vide (position 0, limite size) d'une capacit d'au moins size
+	 */
+	public synchronized ByteBuffer acquire(int size) {
+		int capacity = capacityFor(size);
+		ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+		ByteBuffer buffer = buffers == null ? null : buffers.poll();
+
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(capacity);
+			allocations++;
+		}
+		else {
+			pooledBytes -= capacity;
+			reuses++;
+		}
+
+		buffer.clear();
+		buffer.limit(size);
+
+		return buffer;
+	}
+
+	/**
+	 * Rend un tampon obtenu avec acquire(). Il ne doit plus tre utilis par l'appelant.
+	 */
+	public synchronized void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+
+		if (capacity == capacityFor(capacity) && pooledBytes + capacity <= maxPooledBytes) {
+			ArrayDeque<ByteBuffer> buffers = free.get(capacity);
+
+			if (buffers == null) {
+				buffers = new ArrayDeque<ByteBuffer>();
+				free.put(capacity, buffers);
+			}
+
+			buffers.push(buffer);
+			pooledBytes += capacity;
+		}
+	}
+
+	/**
+	 * @return rsum des compteurs, pour affichage
+	 */
+	public synchronized String getStats() {
+		return String.format("%d allocations, %d rutilisations, %d Ko en rserve", allocations, reuses, pooledBytes / 1024);
+	}
+
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+
+		while (capacity < size && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+
+		return Math.max(capacity, size);
+	}
+}
@@ -0,0 +1,109 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Sequence;
+import com.sleepycat.je.SequenceConfig;
+
+/**
+ * Gnrateur d'id numriques uniques, de type hi/lo.
+ *
+ * Un bloc de blockSize ids est rserv de faon atomique dans la base de donnes
+ * (une seule criture), puis les ids sont distribus  partir de la mmoire.
+ * Deux processus (ou deux gnrateurs) ne reoivent jamais le mme bloc.
+ *
+ * Deux sources de blocs sont disponibles :
+ *  - mongo(nom)    : document {_id: nom, value: dernier id rserv} de la collection "counters"
+ *  - berkeley(nom) : Sequence Berkeley JE, dans la base de BerkeleyConnection
+ */
+public abstract class IdGenerator {
+	public static final int DEFAULT_BLOCK_SIZE = 100;
+
+	private static IdGenerator people;
+
+	private final int blockSize;
+	private long next = 1;
+	private long last = 0;
+
+	protected IdGenerator(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return le gnrateur utilis pour les fiches de personnes
+	 */
+	public static synchronized IdGenerator forPeople() {
+		if (people == null) {
+			people = mongo("personnes", DEFAULT_BLOCK_SIZE);
+		}
+
+		return people;
+	}
+
+	/**
+	 * Gnrateur dont les blocs sont rservs dans la collection MongoDB "counters"
+	 */
+	public static IdGenerator mongo(final String name, int blockSize) {
+		return new IdGenerator(blockSize) {
+
+			@Override
+			protected long reserve(int size) {
+				MongoCollection<Document> counters = MongoConnection.getConnection().getCollection("counters");
+				Document counter = counters.findOneAndUpdate(Filters.eq("_id", name), Updates.inc("value", (long) size),
+						new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+
+				return ((Number) counter.get("value")).longValue() - size + 1;
+			}
+		};
+	}
+
+	/**
+	 * Gnrateur dont les blocs sont rservs dans une Sequence Berkeley JE
+	 */
+	public static IdGenerator berkeley(final String name, int blockSize) {
+		return new IdGenerator(blockSize) {
+			private Sequence sequence;
+
+			@Override
+			protected long reserve(int size) {
+				if (sequence == null) {
+					DatabaseEntry key = new DatabaseEntry();
+					StringBinding.stringToEntry("seq:" + name, key);
+					SequenceConfig config = new SequenceConfig();
+					config.setAllowCreate(true);
+					config.setInitialValue(1);
+					sequence = BerkeleyConnection.getConnection().openSequence(null, key, config);
+				}
+
+				return sequence.get(null, size);
+			}
+		};
+	}
+
+	/**
+	 * @return un nouvel id, unique
+	 */
+	public synchronized long nextId() {
+		if (next > last) {
+			next = reserve(blockSize);
+			last = next + blockSize - 1;
+		}
+
+		return next++;
+	}
+
+	/**
+	 * Rserve atomiquement un bloc d'ids conscutifs
+	 *
+	 * @param size taille du bloc
+	 * @return le premier id du bloc
+	 */
+	protected abstract long reserve(int size);
+}
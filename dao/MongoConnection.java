@@ -1,55 +1,167 @@
 package ca.qc.cvm.dba.persinteret.dao;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.bson.Document;
+
 import com.mongodb.*;
 import com.mongodb.client.MongoDatabase;
 
+/**
+ * Connexion (client MongoDB et son pool) partage par toute l'application.
+ *
+ * La configuration se fait avec les proprits systme suivantes :
+ *  - persinteret.mongo.host                     hte (dfaut localhost)
+ *  - persinteret.mongo.port                     port (dfaut 27017)
+ *  - persinteret.mongo.database                 base de donnes (dfaut personne_db)
+ *  - persinteret.mongo.maxPoolSize              connexions maximales dans le pool (dfaut 20)
+ *  - persinteret.mongo.minPoolSize              connexions gardes ouvertes, ouvertes par warmUp() (dfaut 4)
+ *  - persinteret.mongo.connectTimeoutMs         dlai d'ouverture d'une connexion (dfaut 5000)
+ *  - persinteret.mongo.socketTimeoutMs          dlai de lecture, 0 = aucun (dfaut 0)
+ *  - persinteret.mongo.serverSelectionTimeoutMs dlai pour trouver un serveur disponible (dfaut 5000)
+ *  - persinteret.mongo.readConcern              local, majority, ... (dfaut : celui du serveur)
+ *  - persinteret.mongo.writeConcern             acknowledged, w1, majority, journaled, ... (dfaut acknowledged)
+ *
+ * Une valeur inconnue de readConcern ou writeConcern est signale et remplace par la valeur par dfaut.
+ */
 public class MongoConnection {
+	private static final Logger LOGGER = Logger.getLogger(MongoConnection.class.getName());
 	private static MongoClient mongoClient; 
-	private static MongoDatabase connection;
-	private static final String DB_NAME = "personne_db";
-	private static final String DB_HOST = "localhost";
+	private static volatile MongoDatabase connection;
+	private static final String DB_NAME = System.getProperty("persinteret.mongo.database", "personne_db");
+	private static final String DB_HOST = System.getProperty("persinteret.mongo.host", "localhost");
+	private static final int DB_PORT = Integer.getInteger("persinteret.mongo.port", 27017);
+	private static final int MAX_POOL_SIZE = Integer.getInteger("persinteret.mongo.maxPoolSize", 20);
+	private static final int MIN_POOL_SIZE = Integer.getInteger("persinteret.mongo.minPoolSize", 4);
 	
 	/**
-	 * Mthode qui permet de retourner une connexion  la base de donnes
+	 * Mthode qui permet de retourner une connexion  la base de donnes.
+	 * Appele par chaque requte des DAO : une fois la connexion ouverte, aucun verrou n'est pris.
 	 * 
 	 * @return
 	 */
 	public static MongoDatabase getConnection() {
-		if (connection == null) {
-			
-			try {
-				Logger mongoLogger = Logger.getLogger( "org.mongodb" );
-				mongoLogger.setLevel(Level.WARNING);
-				
-				mongoClient = new MongoClient(DB_HOST);
-				connection = mongoClient.getDatabase(DB_NAME);
+		MongoDatabase current = connection;
+		
+		if (current == null) {
+			synchronized (MongoConnection.class) {
+				current = connection;
 				
-			} 
-			catch (Exception e) {
-				e.printStackTrace();
+				if (current == null) {
+					try {
+						Logger mongoLogger = Logger.getLogger( "org.mongodb" );
+						mongoLogger.setLevel(Level.WARNING);
+						
+						mongoClient = new MongoClient(new ServerAddress(DB_HOST, DB_PORT), buildOptions());
+						current = mongoClient.getDatabase(DB_NAME);
+						connection = current;
+					} 
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+		
+		return current;
+	}
+	
+	private static MongoClientOptions buildOptions() {
+		MongoClientOptions.Builder options = MongoClientOptions.builder()
+				.applicationName("persinteret")
+				.connectionsPerHost(MAX_POOL_SIZE)
+				.minConnectionsPerHost(MIN_POOL_SIZE)
+				.connectTimeout(Integer.getInteger("persinteret.mongo.connectTimeoutMs", 5000))
+				.socketTimeout(Integer.getInteger("persinteret.mongo.socketTimeoutMs", 0))
+				.serverSelectionTimeout(Integer.getInteger("persinteret.mongo.serverSelectionTimeoutMs", 5000));
+		String writeConcern = System.getProperty("persinteret.mongo.writeConcern", "acknowledged");
+		WriteConcern concern = WriteConcern.valueOf(writeConcern);
+		
+		if (concern == null) {
+			LOGGER.warning("persinteret.mongo.writeConcern inconnu : " + writeConcern + ", acknowledged utilis");
+			concern = WriteConcern.ACKNOWLEDGED;
+		}
+		
+		options.writeConcern(concern);
+		String readConcern = System.getProperty("persinteret.mongo.readConcern");
+		
+		if (readConcern != null) {
+			try {
+				options.readConcern(new ReadConcern(ReadConcernLevel.fromString(readConcern)));
+			}
+			catch (IllegalArgumentException e) {
+				LOGGER.warning("persinteret.mongo.readConcern inconnu : " + readConcern + ", celui du serveur utilis");
 			}
 		}
 		
-		return connection;
+		return options.build();
 	}
 	
 	/**
-	 * Mthode permettant de tester la connexion
+	 * Ouvre d'avance minPoolSize connexions du pool (requtes ping simultanes), pour que
+	 * la premire requte de l'interface n'ait pas  payer l'ouverture d'une connexion.
+	 */
+	public static void warmUp() {
+		final MongoDatabase c = getConnection();
+		
+		if (c == null) {
+			return;
+		}
+		
+		List<Thread> threads = new ArrayList<Thread>();
+		
+		for (int i = 0; i < MIN_POOL_SIZE; i++) {
+			Thread t = new Thread(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						c.runCommand(new Document("ping", 1));
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}, "mongo-warmup");
+			t.setDaemon(true);
+			t.start();
+			threads.add(t);
+		}
+		
+		for (Thread t : threads) {
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Mthode permettant de tester la connexion. Le client reste ouvert : la connexion
+	 * vrifie est rutilise par les requtes suivantes.
 	 * 
 	 * @return si la connexion est ouverte ou pas
 	 */
 	public static boolean connectionCredentialsValid() {
 		MongoDatabase c = getConnection();
-		boolean valid = c != null;
-		releaseConnection();
+		boolean valid = false;
+		
+		try {
+			valid = c != null && c.runCommand(new Document("ping", 1)) != null;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
 		
 		return valid;
 	}
 	
-	public static void releaseConnection() {
+	public static synchronized void releaseConnection() {
 		if (connection != null) {
 			try {
 				mongoClient.close();
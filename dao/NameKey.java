@@ -0,0 +1,67 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Filters;
+
+/**
+ * Cl de recherche normalise d'un nom (minuscules, sans accents).
+ *
+ * Elle est sauvegarde dans le champ "nameKey" de chaque fiche afin que la
+ * recherche par prfixe soit un simple parcours d'intervalle sur l'index,
+ * au lieu d'une expression rgulire insensible  la casse.
+ */
+public class NameKey {
+	public static final String FIELD = "nameKey";
+	private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+
+	/**
+	 * Normalise un nom : dcomposition NFD, retrait des accents, minuscules.
+	 * Ex: "lose Ct" devient "eloise cote"
+	 *
+	 * @param name nom  normaliser, peut tre null
+	 * @return la cl normalise (jamais null)
+	 */
+	public static String of(String name) {
+		if (name == null) {
+			return "";
+		}
+
+		String decomposed = Normalizer.normalize(name.trim(), Normalizer.Form.NFD);
+
+		return DIACRITICS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Filtre correspondant  tous les noms qui dbutent par le prfixe donn.
+	 *
+	 * Le filtre est de la forme {nameKey: {$gte: "abc", $lt: "abd"}}, ce que MongoDB
+	 * rsout directement avec l'index {nameKey: 1, name: 1}.
+	 *
+	 * @param prefix prfixe tel que saisi par l'usager, peut tre vide ou null
+	 * @return le filtre (vide si aucun prfixe)
+	 */
+	public static Bson prefixFilter(String prefix) {
+		String key = of(prefix);
+
+		if (key.length() == 0) {
+			return new Document();
+		}
+
+		char last = key.charAt(key.length() - 1);
+
+		// Aucun caractre ne suit Character.MAX_VALUE : l'intervalle reste ouvert (et l'index, utilis)
+		if (last == Character.MAX_VALUE) {
+			return Filters.gte(FIELD, key);
+		}
+
+		String upperBound = key.substring(0, key.length() - 1) + (char)(last + 1);
+
+		return Filters.and(Filters.gte(FIELD, key), Filters.lt(FIELD, upperBound));
+	}
+}
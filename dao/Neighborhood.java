@@ -0,0 +1,203 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.neo4j.driver.AccessMode;
+import org.neo4j.driver.Record;
+import org.neo4j.driver.Session;
+import org.neo4j.driver.StatementResult;
+import org.neo4j.driver.Transaction;
+
+import ca.qc.cvm.dba.persinteret.entity.NetworkElement;
+
+/**
+ * Parcours en continu du rseau d'une personne, jusqu' maxDepth connexions de distance.
+ *
+ * Le parcours se fait en largeur, un niveau  la fois : une requte par niveau, qui ne part
+ * que des personnes dcouvertes au niveau prcdent (pas de chemins de longueur variable,
+ * dont le nombre explose autour des personnes trs connectes). Les rsultats sont lus au
+ * fur et  mesure que l'itrateur avance et la lecture s'arrte ds que limit lments ont
+ * t retourns : le reste du niveau n'est jamais transfr.
+ *
+ * Les lments retourns sont :
+ *  - NetworkElement.Node pour la personne de dpart (profondeur 0), puis chaque personne atteinte
+ *  - NetworkElement.Edge pour chaque connexion entre deux personnes retournes (une seule fois),
+ *    toujours aprs ses deux personnes. Les connexions entre personnes du dernier niveau
+ *    (maxDepth) sont lues par une dernire requte, qui ne part que de ce niveau.
+ *
+ * L'itrateur garde une session Neo4j ouverte : il doit tre ferm (try-with-resources),
+ * ce qui est fait automatiquement une fois le parcours termin.
+ */
+public class Neighborhood implements Iterator<NetworkElement>, AutoCloseable {
+	private static final int FETCH_SIZE = 100;
+	private static final String EXPAND_QUERY = "MATCH (p:Person)-[:CONNAIT]-(o:Person) "
+											 + "WHERE p.name IN $frontier AND ($statuses IS NULL OR o.status IN $statuses) "
+											 + "RETURN p.name AS from, o.name AS name, o.status AS status";
+	private static final String LAST_LEVEL_QUERY = "MATCH (p:Person)-[:CONNAIT]-(o:Person) "
+												 + "WHERE p.name IN $frontier AND o.name IN $frontier AND p.name < o.name "
+												 + "RETURN p.name AS from, o.name AS name, o.status AS status";
+
+	private final Session session;
+	private final Transaction tx;
+	private final int maxDepth;
+	private final int limit;
+	private final List<String> statuses;
+	private final Map<String, Integer> depths = new HashMap<String, Integer>();
+	private final ArrayDeque<NetworkElement> pending = new ArrayDeque<NetworkElement>();
+	private List<String> frontier = new ArrayList<String>();
+	private List<String> discovered = new ArrayList<String>();
+	private StatementResult result;
+	private int depth;
+	private int returned;
+	private boolean lastLevel;
+	private boolean closed;
+
+	/**
+	 * @param name personne de dpart
+	 * @param maxDepth nombre maximal de connexions  franchir
+	 * @param statuses statuts des personnes  parcourir (null ou vide pour tous)
+	 * @param limit nombre maximal d'lments (personnes et connexions) retourns
+	 */
+	Neighborhood(String name, int maxDepth, Collection<String> statuses, int limit) {
+		this.maxDepth = maxDepth;
+		this.limit = limit;
+		this.statuses = statuses == null || statuses.isEmpty() ? null : new ArrayList<String>(statuses);
+		this.session = Neo4jConnection.openSession(AccessMode.READ, FETCH_SIZE);
+
+		// L'appelant ne reoit pas l'itrateur en cas d'erreur : la session est ferme ici
+		Transaction opened = null;
+
+		try {
+			opened = session.beginTransaction();
+
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("name", name);
+			StatementResult start = opened.run("MATCH (p:Person {name: $name}) RETURN p.status AS status", params);
+
+			if (start.hasNext()) {
+				depths.put(name, 0);
+				frontier.add(name);
+				pending.add(new NetworkElement.Node(name, asString(start.next(), "status"), 0));
+			}
+		}
+		catch (RuntimeException e) {
+			try {
+				if (opened != null) {
+					opened.close();
+				}
+			}
+			finally {
+				session.close();
+			}
+
+			throw e;
+		}
+
+		this.tx = opened;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (returned >= limit) {
+			close();
+			return false;
+		}
+
+		while (pending.isEmpty() && !closed) {
+			advance();
+		}
+
+		return !pending.isEmpty();
+	}
+
+	@Override
+	public NetworkElement next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		returned++;
+		return pending.poll();
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+
+			try {
+				tx.close();
+			}
+			finally {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Lit la prochaine ligne du niveau en cours, ou lance la requte du niveau suivant
+	 */
+	private void advance() {
+		if (result != null && result.hasNext()) {
+			visit(result.next());
+		}
+		else {
+			if (result != null) {
+				result = null;
+				frontier = discovered;
+				discovered = new ArrayList<String>();
+				depth++;
+			}
+
+			if (frontier.isEmpty() || (depth >= maxDepth && lastLevel)) {
+				close();
+			}
+			else {
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("frontier", frontier);
+				params.put("statuses", statuses);
+
+				if (depth >= maxDepth) {
+					// Connexions entre personnes du dernier niveau (sans dcouvrir de nouvelles personnes)
+					lastLevel = true;
+					result = tx.run(LAST_LEVEL_QUERY, params);
+				}
+				else {
+					result = tx.run(EXPAND_QUERY, params);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Une connexion entre deux personnes du mme niveau est vue deux fois (une fois de chaque
+	 * ct) : elle n'est retourne que depuis le nom le plus petit. Une connexion vers le niveau
+	 * prcdent a dj t retourne lors du parcours de ce niveau.
+	 */
+	private void visit(Record row) {
+		String from = asString(row, "from");
+		String to = asString(row, "name");
+		Integer known = depths.get(to);
+
+		if (known == null) {
+			depths.put(to, depth + 1);
+			discovered.add(to);
+			pending.add(new NetworkElement.Node(to, asString(row, "status"), depth + 1));
+			pending.add(new NetworkElement.Edge(from, to));
+		}
+		else if (known == depth + 1 || (known == depth && from.compareTo(to) < 0)) {
+			pending.add(new NetworkElement.Edge(from, to));
+		}
+	}
+
+	private static String asString(Record row, String key) {
+		return row.get(key).isNull() ? null : row.get(key).asString();
+	}
+}
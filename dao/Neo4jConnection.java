@@ -1,37 +1,126 @@
 package ca.qc.cvm.dba.persinteret.dao;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
+import org.neo4j.driver.AccessMode;
 import org.neo4j.driver.AuthTokens;
+import org.neo4j.driver.Config;
 import org.neo4j.driver.Driver;
 import org.neo4j.driver.GraphDatabase;
 import org.neo4j.driver.Record;
 import org.neo4j.driver.Session;
+import org.neo4j.driver.SessionConfig;
 import org.neo4j.driver.StatementResult;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionWork;
 import org.neo4j.driver.types.Node;
 import org.neo4j.driver.types.Path;
 import org.neo4j.driver.types.Relationship;
 
+/**
+ * Accs  Neo4j par unit de travail.
+ *
+ * Un seul Driver (et son pool de connexions) est partag par toute l'application, mais
+ * chaque unit de travail ouvre sa propre Session, de courte dure (une Session n'est pas
+ * thread-safe). read() et write() excutent le travail dans une transaction gre par le
+ * driver, qui est automatiquement rejoue en cas d'erreur transitoire (TransientException,
+ * serveur momentanment indisponible) pendant au plus maxRetryTimeMs.
+ *
+ * Configuration (proprits systme) :
+ *  - persinteret.neo4j.uri            (dfaut bolt://localhost:7687)
+ *  - persinteret.neo4j.user           (dfaut neo4j)
+ *  - persinteret.neo4j.password       (dfaut AAAaaa111)
+ *  - persinteret.neo4j.maxPoolSize    connexions maximales dans le pool (dfaut 20)
+ *  - persinteret.neo4j.maxRetryTimeMs dure maximale des reprises d'une transaction (dfaut 15000)
+ */
 public class Neo4jConnection {
+	private static final String URI = System.getProperty("persinteret.neo4j.uri", "bolt://localhost:7687");
+	private static final String USER = System.getProperty("persinteret.neo4j.user", "neo4j");
+	private static final String PASSWORD = System.getProperty("persinteret.neo4j.password", "AAAaaa111");
 	private static Driver graphDB;
-	private static Session session;
 
 	/**
-	 * Mthode permettant d'obtenir une connexion
-	 * @return une connexion
+	 * Mthode permettant d'obtenir le driver (partag, thread-safe)
+	 * @return le driver
 	 */
-	public static Session getConnection() {		
+	public static synchronized Driver getDriver() {
 		if (graphDB == null) {
-			graphDB = GraphDatabase.driver( "bolt://localhost:7687", AuthTokens.basic( "neo4j", "AAAaaa111") );
-			session = graphDB.session();
+			Config config = Config.builder()
+					.withMaxConnectionPoolSize(Integer.getInteger("persinteret.neo4j.maxPoolSize", 20))
+					.withMaxTransactionRetryTime(Integer.getInteger("persinteret.neo4j.maxRetryTimeMs", 15000), TimeUnit.MILLISECONDS)
+					.build();
+			graphDB = GraphDatabase.driver(URI, AuthTokens.basic(USER, PASSWORD), config);
 		}
 		
-		return session;
+		return graphDB;
+	}
+
+	/**
+	 * Ouvre une nouvelle session,  fermer par l'appelant (try-with-resources)
+	 *
+	 * @param mode READ ou WRITE
+	 * @return une session de courte dure
+	 */
+	public static Session openSession(AccessMode mode) {
+		return getDriver().session(SessionConfig.builder().withDefaultAccessMode(mode).build());
+	}
+
+	/**
+	 * @param mode READ ou WRITE
+	 * @param fetchSize nombre de lignes transfres  la fois lors de la lecture d'un rsultat
+	 * @return une session de courte dure,  fermer par l'appelant
+	 */
+	public static Session openSession(AccessMode mode, long fetchSize) {
+		return getDriver().session(SessionConfig.builder().withDefaultAccessMode(mode).withFetchSize(fetchSize).build());
+	}
+
+	/**
+	 * Excute une unit de travail en lecture, dans sa propre session et transaction.
+	 * Le rsultat doit tre entirement lu  l'intrieur de work.
+	 */
+	public static <T> T read(TransactionWork<T> work) {
+		try (Session session = openSession(AccessMode.READ)) {
+			return session.readTransaction(work);
+		}
+	}
+
+	/**
+	 * Excute une unit de travail en criture, dans sa propre session et transaction
+	 */
+	public static <T> T write(TransactionWork<T> work) {
+		try (Session session = openSession(AccessMode.WRITE)) {
+			return session.writeTransaction(work);
+		}
+	}
+
+	/**
+	 * Excute une seule requte d'criture (transaction gre, avec reprises)
+	 */
+	public static void write(final String query, final Map<String, Object> params) {
+		write(new TransactionWork<Void>() {
+
+			@Override
+			public Void execute(Transaction tx) {
+				tx.run(query, params).consume();
+				return null;
+			}
+		});
+	}
+
+	public static synchronized void releaseConnection() {
+		if (graphDB != null) {
+			try {
+				graphDB.close();
+				graphDB = null;
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	/**
@@ -44,31 +133,38 @@ public class Neo4jConnection {
 	 * @param params Les paramtres de la requte
 	 * @return Une liste de noeuds et relations.
 	 */
-	public static List<Object> getPath(String query, Map<String, Object> params) {
-		Session session = Neo4jConnection.getConnection();
-		List<Object> resultList = new ArrayList<Object>();
-		
-		try {					
-            StatementResult result = session.run( query, params);
-            
-            if (result.hasNext()) {
-            	Record row = result.next();
-            	Path p = row.get("path").asPath();
-            	
-            	Iterator<Node> nodes = p.nodes().iterator();
-				Iterator<Relationship> relationships= p.relationships().iterator();
-				
-				while (nodes.hasNext()) {
-					Node node = nodes.next();
+	public static List<Object> getPath(final String query, final Map<String, Object> params) {
+		final List<Object> resultList = new ArrayList<Object>();
 		
-					resultList.add(node);
+		try {
+			read(new TransactionWork<Void>() {
+
+				@Override
+				public Void execute(Transaction tx) {
+					resultList.clear();
+					StatementResult result = tx.run(query, params);
 					
-					if (relationships.hasNext()) {
-						resultList.add(relationships.next());
+					if (result.hasNext()) {
+						Record row = result.next();
+						Path p = row.get("path").asPath();
+						
+						Iterator<Node> nodes = p.nodes().iterator();
+						Iterator<Relationship> relationships= p.relationships().iterator();
+						
+						while (nodes.hasNext()) {
+							Node node = nodes.next();
+				
+							resultList.add(node);
+							
+							if (relationships.hasNext()) {
+								resultList.add(relationships.next());
+							}
+						}
 					}
-				}		
-            }
-        }
+					return null;
+				}
+			});
+		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
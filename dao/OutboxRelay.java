@@ -0,0 +1,520 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Outbox transactionnelle des sauvegardes de fiches.
+ *
+ * save() n'crit que la fiche MongoDB. Dans la mme criture (atomique, un seul document),
+ * une entre est ajoute au tableau "outbox" de la fiche :
+ *    {seq: numro unique, at: date d'criture (ms), after: tat  appliquer, photoData: photo}
+ * Le champ "applied" de la fiche contient l'tat dj appliqu aux autres stockages
+ * (null si rien n'a encore t appliqu). Les fiches sans ce champ (antrieures  l'outbox,
+ * ou insres par saveAll()) sont entirement appliques.
+ *
+ * Le relais (thread "outbox-relay") traite les fiches en attente par lots de BATCH_SIZE,
+ * les entres d'une fiche dans leur ordre d'criture, et applique pour chaque entre la
+ * diffrence entre l'tat appliqu et l'tat de l'entre :
+ *  - photo            PhotoStore.acquire() / release() (ensemble owners). Les octets ne sont
+ *                     dans l'entre que pour une nouvelle photo ; une entre sans champ photo
+ *                     garde la photo dj applique.
+ *  - compteurs        StatsCounters.applyOnce(), gard par le numro de l'entre
+ * puis, pour l'tat final de chaque fiche du lot :
+ *  - renommage        ancien nom remplac dans les connexions des autres fiches, ancien noeud retir
+ *  - connexions       diffrence entre les connexions appliques et les connexions actuelles,
+ *                     crite dans les autres fiches, un seul bulkWrite ordonn ($addToSet / $pull)
+ *  - graphe           PersonGraph.syncAll(), une requte UNWIND pour le lot (MERGE)
+ * et enfin retire les entres traites et met  jour "applied", un seul bulkWrite pour le lot.
+ *
+ * Chacune de ces critures est idempotente : un lot interrompu (panne, exception) est
+ * simplement rejou au tour suivant. Les caches locaux (PersonCache, PersonStore) sont
+ * mis  jour directement par save(), ils n'attendent pas le relais. Les lectures de fiches
+ * excluent les champs "outbox" et "applied".
+ *
+ * Lorsqu'il n'a rien  appliquer, le relais vrifie aussi les compteurs statistiques
+ * (StatsCounters.verify(), parcours complet) au plus une fois par VERIFY_NANOS
+ * (-Dpersinteret.stats.verifyMinutes, 60 par dfaut).
+ */
+public class OutboxRelay implements Runnable {
+	public static final String FIELD = "outbox";
+	public static final String APPLIED = "applied";
+	private static final int BATCH_SIZE = 100;
+	private static final long IDLE_NANOS = 500L * 1000 * 1000;
+	private static final long VERIFY_NANOS = Long.getLong("persinteret.stats.verifyMinutes", 60) * 60 * 1000 * 1000 * 1000;
+	private static final String[] STATE_FIELDS = {"name", "status", "dateOfBirth", "hasPhoto", PhotoStore.FIELD, "connexions"};
+	private static final IdGenerator sequence = IdGenerator.mongo(FIELD, IdGenerator.DEFAULT_BLOCK_SIZE);
+	private static final OutboxRelay instance = new OutboxRelay();
+	// Exclusion entre l'application d'un lot et les suppressions (voir PersonDAO.delete())
+	static final Object LOCK = new Object();
+
+	private final AtomicLong appliedEntries = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private volatile Thread thread;
+	private volatile boolean running;
+
+	private OutboxRelay() {
+	}
+
+	/**
+	 * Dmarre le thread du relais (sans effet s'il est dj dmarr)
+	 */
+	public static synchronized void start() {
+		if (instance.thread == null) {
+			instance.running = true;
+			instance.thread = new Thread(instance, "outbox-relay");
+			instance.thread.setDaemon(true);
+			instance.thread.start();
+		}
+	}
+
+	/**
+	 * Arrte le relais aprs le lot en cours. Les entres restantes seront appliques au prochain dmarrage.
+	 */
+	public static synchronized void stop() {
+		Thread current = instance.thread;
+
+		if (current != null) {
+			instance.running = false;
+			LockSupport.unpark(current);
+
+			try {
+				current.join(5000);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			instance.thread = null;
+		}
+	}
+
+	/**
+	 * Signale au relais qu'une entre vient d'tre crite (sinon, il vrifie toutes les IDLE_NANOS)
+	 */
+	public static void wakeUp() {
+		Thread current = instance.thread;
+
+		if (current != null) {
+			LockSupport.unpark(current);
+		}
+	}
+
+	@Override
+	public void run() {
+		long verifiedAt = System.nanoTime();
+
+		while (running) {
+			int applied = 0;
+
+			try {
+				applied = relayBatch();
+
+				if (applied == 0 && System.nanoTime() - verifiedAt >= VERIFY_NANOS) {
+					verifiedAt = System.nanoTime();
+					StatsCounters.verify();
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			if (applied == 0 && running) {
+				LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+		}
+	}
+
+	/**
+	 * Applique toutes les entres en attente, dans le thread appelant (ex. avant un rapport
+	 * qui doit reflter toutes les sauvegardes)
+	 */
+	public static void drain() {
+		while (instance.relayBatch() > 0) {
+			// lot suivant
+		}
+	}
+
+	/**
+	 * Construit l'entre d'outbox d'une fiche
+	 *
+	 * @param doc fiche  sauvegarder (voir PersonDAO.toDocument())
+	 * @param imageData photo complte, tlverse par le relais (null si aucune)
+	 */
+	static Document entry(Document doc, byte[] imageData) {
+		Document entry = new Document("seq", sequence.nextId())
+				.append("at", System.currentTimeMillis())
+				.append("after", state(doc));
+
+		if (imageData != null) {
+			entry.append("photoData", new Binary(imageData));
+		}
+
+		return entry;
+	}
+
+	/**
+	 * Une fiche antrieure  l'outbox n'a pas de champ "applied" : son tat avant la
+	 * sauvegarde (dj appliqu partout) y est conserv, avant que le relais ne la traite.
+	 *
+	 * @param before ancienne fiche, lue avec les champs de l'tat (null pour une insertion)
+	 */
+	static void initApplied(MongoCollection<Document> collection, Document before) {
+		if (before != null && !before.containsKey(APPLIED)) {
+			collection.updateOne(Filters.and(Filters.eq("_id", before.get("_id")), Filters.exists(APPLIED, false)),
+					Updates.set(APPLIED, state(before)));
+		}
+	}
+
+	/**
+	 * @return l'tat d'une fiche dj appliqu aux autres stockages, ou null si aucun
+	 */
+	static Document appliedState(Document doc) {
+		return doc.containsKey(APPLIED) ? (Document) doc.get(APPLIED) : doc;
+	}
+
+	/**
+	 * @return true s'il reste des entres  appliquer
+	 */
+	public static boolean hasPending() {
+		return getCollection().find(Filters.exists(FIELD + ".seq")).projection(Projections.include("_id")).first() != null;
+	}
+
+	/**
+	 * @return ge de la plus ancienne entre en attente, en millisecondes (0 si aucune)
+	 */
+	@SuppressWarnings("unchecked")
+	public static long getLagMillis() {
+		Document oldest = getCollection().find(Filters.exists(FIELD + ".seq"))
+				.sort(Sorts.ascending(FIELD + ".seq"))
+				.projection(Projections.include(FIELD + ".at"))
+				.first();
+		long lag = 0;
+
+		if (oldest != null) {
+			for (Document entry : (List<Document>) oldest.get(FIELD)) {
+				lag = Math.max(lag, System.currentTimeMillis() - ((Number) entry.get("at")).longValue());
+			}
+		}
+
+		return lag;
+	}
+
+	/**
+	 * @return rsum des compteurs du relais, pour affichage
+	 */
+	public static String getStats() {
+		long pending = getCollection().count(Filters.exists(FIELD + ".seq"));
+
+		return String.format("%d entres appliques en %d lots, %d fiches en attente, retard de %d ms",
+				instance.appliedEntries.get(), instance.batches.get(), pending, getLagMillis());
+	}
+
+	/**
+	 * Applique un lot de fiches en attente (les plus anciennes d'abord). Le lot est appliqu
+	 * sous LOCK : une suppression ne peut pas s'intercaler entre la lecture et l'application.
+	 *
+	 * @return nombre d'entres appliques
+	 */
+	@SuppressWarnings("unchecked")
+	private int relayBatch() {
+		synchronized (LOCK) {
+			MongoCollection<Document> collection = getCollection();
+			List<Document> rows = collection.find(Filters.and(Filters.exists(FIELD + ".seq"), Filters.exists(APPLIED)))
+					.sort(Sorts.ascending(FIELD + ".seq"))
+					.projection(Projections.include("id", "name", "connexions", APPLIED, FIELD))
+					.limit(BATCH_SIZE)
+					.into(new ArrayList<Document>());
+
+			if (rows.isEmpty()) {
+				return 0;
+			}
+
+			List<WriteModel<Document>> statsWrites = new ArrayList<WriteModel<Document>>();
+			List<WriteModel<Document>> doneWrites = new ArrayList<WriteModel<Document>>();
+			Set<String> changed = new HashSet<String>();
+			Map<String, Document> latest = new LinkedHashMap<String, Document>();
+			Map<String, List<String>> previous = new HashMap<String, List<String>>();
+			Map<String, String> renamed = new HashMap<String, String>();
+			Set<String> inserted = new HashSet<String>();
+			int count = 0;
+
+			for (Document row : rows) {
+				Document before = (Document) row.get(APPLIED);
+				List<Document> entries = (List<Document>) row.get(FIELD);
+				List<Long> seqs = new ArrayList<Long>();
+
+				previous.put(row.getString("name"), new ArrayList<String>(connexionsOf(before)));
+
+				if (before == null) {
+					inserted.add(row.getString("name"));
+				}
+				else if (!row.getString("name").equals(before.getString("name"))) {
+					rename(collection, before.getString("name"), row.getString("name"), changed);
+					renamed.put(before.getString("name"), row.getString("name"));
+				}
+
+				for (Document entry : entries) {
+					long seq = ((Number) entry.get("seq")).longValue();
+					Document after = withPhoto((Document) entry.get("after"), before);
+					Binary photoData = (Binary) entry.get("photoData");
+
+					applyPhoto(row.get("id"), before, after, photoData == null ? null : photoData.getData());
+
+					WriteModel<Document> stats = StatsCounters.applyOnce(seq, before, after);
+
+					if (stats != null) {
+						statsWrites.add(stats);
+					}
+
+					seqs.add(seq);
+					before = after;
+				}
+
+				// Connexions finales : celles de la fiche (dernire sauvegarde, plus les critures inverses dj faites)
+				before.put("connexions", new ArrayList<String>(connexionsOf(row)));
+				latest.put(row.getString("name"), before);
+				doneWrites.add(new UpdateOneModel<Document>(Filters.eq("_id", row.get("_id")), Updates.combine(
+						Updates.pullByFilter(new Document(FIELD, new Document("seq", new Document("$in", seqs)))),
+						Updates.set(APPLIED, before))));
+				count += entries.size();
+			}
+
+			// Les fiches du lot ont t lues avant les renommages, qui les ont peut-tre modifies
+			for (String name : latest.keySet()) {
+				rename(connexionsOf(latest.get(name)), renamed);
+				rename(previous.get(name), renamed);
+			}
+
+			reverseConnexions(collection, latest, previous, inserted, changed);
+			List<Person> synced = new ArrayList<Person>();
+
+			for (Map.Entry<String, Document> person : latest.entrySet()) {
+				synced.add(new Person(person.getKey(), null, person.getValue().getString("status"), null,
+						new ArrayList<String>(connexionsOf(person.getValue())), null));
+			}
+
+			StatsCounters.write(statsWrites);
+			PersonGraph.syncAll(synced);
+			collection.bulkWrite(doneWrites, new BulkWriteOptions().ordered(false));
+			PersonDAO.invalidate(changed);
+
+			appliedEntries.addAndGet(count);
+			batches.incrementAndGet();
+
+			return count;
+		}
+	}
+
+	/**
+	 * Une entre dont la photo n'a pas chang (photo dj sauvegarde) ne contient pas les
+	 * champs de la photo : ils sont repris de l'tat dj appliqu.
+	 */
+	private static Document withPhoto(Document after, Document before) {
+		if (!after.containsKey(PhotoStore.FIELD)) {
+			after.append(PhotoStore.FIELD, before == null ? null : before.get(PhotoStore.FIELD));
+			after.append("hasPhoto", before != null && Boolean.TRUE.equals(before.get("hasPhoto")));
+		}
+
+		return after;
+	}
+
+	/**
+	 * La nouvelle photo est rfrence avant que l'ancienne ne soit libre (une photo
+	 * partage n'est jamais supprime entre les deux)
+	 */
+	private static void applyPhoto(Object owner, Document before, Document after, byte[] imageData) {
+		String oldPhoto = before == null ? null : before.getString(PhotoStore.FIELD);
+		String newPhoto = after.getString(PhotoStore.FIELD);
+
+		if (newPhoto != null && !newPhoto.equals(oldPhoto) && imageData != null) {
+			PhotoStore.acquire(newPhoto, owner, imageData);
+		}
+
+		if (oldPhoto != null && !oldPhoto.equals(newPhoto)) {
+			PhotoStore.release(oldPhoto, owner);
+		}
+	}
+
+	/**
+	 * Une personne renomme : son ancien nom est remplac dans l'tat appliqu puis dans les
+	 * connexions des autres fiches (un updateMany chacun, tous deux guids par l'index
+	 * {connexions: 1}) et son ancien noeud est retir du graphe (le nouveau est cr par la
+	 * synchronisation du lot).
+	 */
+	private static void rename(MongoCollection<Document> collection, String oldName, String newName, Set<String> changed) {
+		for (Document other : collection.find(Filters.eq("connexions", oldName)).projection(Projections.include("name"))) {
+			changed.add(other.getString("name"));
+		}
+
+		collection.updateMany(Filters.and(Filters.eq("connexions", oldName), Filters.eq(APPLIED + ".connexions", oldName)),
+				Updates.set(APPLIED + ".connexions.$", newName));
+		collection.updateMany(Filters.eq("connexions", oldName), Updates.set("connexions.$", newName));
+		PersonGraph.remove(oldName);
+	}
+
+	private static void rename(List<String> connexions, Map<String, String> renamed) {
+		for (int i = 0; i < connexions.size(); i++) {
+			String newName = renamed.get(connexions.get(i));
+
+			if (newName != null) {
+				connexions.set(i, newName);
+			}
+		}
+	}
+
+	/**
+	 * Les connexions sont symtriques : si X connat Y, la fiche de Y contient aussi X.
+	 *
+	 * Seule la diffrence entre les connexions dj appliques d'une fiche ("applied") et ses
+	 * connexions actuelles est crite dans les autres fiches ($addToSet pour les ajouts, $pull
+	 * pour les retraits), en un seul bulkWrite ordonn : le cot dpend des connexions modifies,
+	 * et non du nombre de personnes qui la connaissent. Chaque criture inverse met aussi  jour
+	 * l'tat appliqu de l'autre fiche (voir reverseWrite()), ce qui garde cette diffrence exacte
+	 * pour sa prochaine sauvegarde.
+	 *
+	 * Une nouvelle fiche reoit en plus les personnes qui la connaissaient dj (ex. importation
+	 * en dsordre) : seule cette recherche interroge l'index {connexions: 1}.
+	 *
+	 * @param latest tat final des fiches du lot (ses connexions sont mises  jour)
+	 * @param previous connexions dj appliques des fiches du lot
+	 * @param inserted fiches du lot jamais appliques (nouvelles)
+	 * @param changed reoit les noms des fiches modifies
+	 */
+	private static void reverseConnexions(MongoCollection<Document> collection, Map<String, Document> latest,
+			Map<String, List<String>> previous, Set<String> inserted, Set<String> changed) {
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+
+		if (!inserted.isEmpty()) {
+			for (Document lister : collection.find(Filters.in("connexions", inserted)).projection(Projections.include("name", "connexions"))) {
+				String listerName = lister.getString("name");
+
+				for (Object name : (List<?>) lister.get("connexions")) {
+					if (inserted.contains(name) && !listerName.equals(name) && !connexionsOf(latest.get(name)).contains(listerName)) {
+						connexionsOf(latest.get(name)).add(listerName);
+						writes.add(new UpdateOneModel<Document>(Filters.eq("name", name), Updates.addToSet("connexions", listerName)));
+						changed.add((String) name);
+					}
+				}
+			}
+		}
+
+		for (Map.Entry<String, Document> person : latest.entrySet()) {
+			String name = person.getKey();
+			Set<String> before = new HashSet<String>(previous.get(name));
+			Set<String> after = new LinkedHashSet<String>(connexionsOf(person.getValue()));
+
+			for (String other : after) {
+				if (!other.equals(name) && !before.contains(other)) {
+					reverseWrite(writes, other, name, true);
+					overlay(latest, other, name, true);
+					changed.add(other);
+				}
+			}
+
+			for (String other : before) {
+				if (!other.equals(name) && !after.contains(other)) {
+					reverseWrite(writes, other, name, false);
+					overlay(latest, other, name, false);
+					changed.add(other);
+				}
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			collection.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+		}
+	}
+
+	/**
+	 * Ajoute (ou retire) name dans les connexions de other, ainsi que dans son tat appliqu
+	 * s'il en a un. Deux modles aux filtres exclusifs : un seul des deux modifie la fiche.
+	 */
+	static void reverseWrite(List<WriteModel<Document>> writes, String other, String name, boolean add) {
+		Document hasApplied = new Document(APPLIED, new Document("$type", "object"));
+		Document noApplied = new Document(APPLIED, new Document("$not", new Document("$type", "object")));
+
+		writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("name", other), hasApplied), add
+				? Updates.combine(Updates.addToSet("connexions", name), Updates.addToSet(APPLIED + ".connexions", name))
+				: Updates.combine(Updates.pull("connexions", name), Updates.pull(APPLIED + ".connexions", name))));
+		writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("name", other), noApplied), add
+				? Updates.addToSet("connexions", name)
+				: Updates.pull("connexions", name)));
+	}
+
+	/**
+	 * Reporte une criture inverse dans l'tat final d'une fiche du lot (qui devient "applied")
+	 */
+	private static void overlay(Map<String, Document> latest, String other, String name, boolean add) {
+		Document state = latest.get(other);
+
+		if (state != null) {
+			List<String> connexions = connexionsOf(state);
+
+			if (add && !connexions.contains(name)) {
+				connexions.add(name);
+			}
+			else if (!add) {
+				connexions.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * @return la liste des connexions d'un tat (modifiable; cre au besoin), vide si aucun tat
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<String> connexionsOf(Document state) {
+		if (state == null) {
+			return new ArrayList<String>();
+		}
+
+		if (!(state.get("connexions") instanceof List)) {
+			state.put("connexions", new ArrayList<String>());
+		}
+
+		return (List<String>) state.get("connexions");
+	}
+
+	/**
+	 * @return les champs d'une fiche utiles aux critures secondaires
+	 */
+	private static Document state(Document doc) {
+		Document state = new Document();
+
+		for (String field : Arrays.asList(STATE_FIELDS)) {
+			if (doc.containsKey(field)) {
+				state.append(field, doc.get(field));
+			}
+		}
+
+		return state;
+	}
+
+	private static MongoCollection<Document> getCollection() {
+		return MongoConnection.getConnection().getCollection("personnes");
+	}
+}
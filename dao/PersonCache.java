@@ -0,0 +1,181 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Cache en mmoire (LRU, taille borne) des fiches de personnes, plac devant PersonStore.
+ *
+ * Les fiches sont indexes par nom et par id. Le cache conserve et retourne des copies :
+ * une fiche modifie par l'interface (ex. setImageData()) n'altre pas le cache.
+ * La photo complte n'y est jamais conserve (seulement la vignette).
+ *
+ * Invalidation :
+ *  - put() aprs une sauvegarde (remplace aussi l'ancien nom si la personne a t renomme)
+ *  - remove() aprs une suppression
+ *  - clear() aprs deleteAll()
+ */
+public class PersonCache {
+	public static final int DEFAULT_MAX_SIZE = 1000;
+
+	private static int maxSize = DEFAULT_MAX_SIZE;
+	private static final Map<Long, String> namesById = new HashMap<Long, String>();
+	private static final LinkedHashMap<String, Person> people = new LinkedHashMap<String, Person>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Person> eldest) {
+			boolean evict = size() > maxSize;
+
+			if (evict) {
+				evictions++;
+
+				if (eldest.getValue().getId() != null) {
+					namesById.remove(eldest.getValue().getId());
+				}
+			}
+
+			return evict;
+		}
+	};
+
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+
+	/**
+	 * @param size nombre maximal de fiches gardes en mmoire
+	 */
+	public static synchronized void setMaxSize(int size) {
+		maxSize = size;
+
+		while (people.size() > maxSize) {
+			String eldest = people.keySet().iterator().next();
+			remove(people.get(eldest));
+			evictions++;
+		}
+	}
+
+	/**
+	 * @param name nom de la personne
+	 * @return une copie de la fiche, ou null si elle n'est pas en cache
+	 */
+	public static synchronized Person get(String name) {
+		Person person = people.get(name);
+
+		if (person == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+
+		return copy(person);
+	}
+
+	/**
+	 * @param id id numrique de la personne
+	 * @return une copie de la fiche, ou null si elle n'est pas en cache
+	 */
+	public static synchronized Person getById(long id) {
+		String name = namesById.get(id);
+
+		if (name == null) {
+			misses++;
+			return null;
+		}
+
+		return get(name);
+	}
+
+	/**
+	 * Ajoute ou remplace une fiche
+	 */
+	public static synchronized void put(Person person) {
+		if (person.getId() != null) {
+			String previousName = namesById.get(person.getId());
+
+			if (previousName != null && !previousName.equals(person.getName())) {
+				people.remove(previousName);
+			}
+		}
+
+		Person previous = people.put(person.getName(), copy(person));
+
+		if (previous != null && previous.getId() != null && !previous.getId().equals(person.getId())) {
+			namesById.remove(previous.getId());
+		}
+
+		if (person.getId() != null) {
+			namesById.put(person.getId(), person.getName());
+		}
+	}
+
+	/**
+	 * Retire une fiche (par nom, et par id si connu)
+	 */
+	public static synchronized void remove(Person person) {
+		Person cached = people.remove(person.getName());
+
+		if (cached != null && cached.getId() != null) {
+			namesById.remove(cached.getId());
+		}
+
+		if (person.getId() != null) {
+			String name = namesById.remove(person.getId());
+
+			if (name != null) {
+				people.remove(name);
+			}
+		}
+	}
+
+	public static synchronized void clear() {
+		people.clear();
+		namesById.clear();
+	}
+
+	public static synchronized int size() {
+		return people.size();
+	}
+
+	public static synchronized long getHitCount() {
+		return hits;
+	}
+
+	public static synchronized long getMissCount() {
+		return misses;
+	}
+
+	public static synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return rsum des compteurs, pour affichage
+	 */
+	public static synchronized String getStats() {
+		long total = hits + misses;
+
+		return String.format("%d/%d fiches, %d succs, %d checs (%.0f%%), %d victions",
+				people.size(), maxSize, hits, misses, total > 0 ? hits * 100.0 / total : 0, evictions);
+	}
+
+	private static Person copy(Person person) {
+		if (person == null) {
+			return null;
+		}
+
+		Person copy = new Person(person.getName(), person.getCodeName(), person.getStatus(), person.getDateOfBirth(),
+				person.getConnexions() == null ? null : new ArrayList<String>(person.getConnexions()), null);
+		copy.setId(person.getId());
+		copy.setThumbnailData(person.getThumbnailData());
+		copy.setPhotoStored(person.isPhotoStored());
+
+		return copy;
+	}
+}
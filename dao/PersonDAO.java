@@ -1,48 +1,57 @@
 package ca.qc.cvm.dba.persinteret.dao;
 
-import java.text.DateFormat;
-
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
 
-import com.mongodb.Bytes;
-import org.bson.BsonValue;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.Binary;
-import com.mongodb.client.model.Indexes;
-import com.mongodb.client.model.IndexOptions;
-import com.mongodb.client.model.Filters;
-import com.mongodb.Block;
-import com.mongodb.client.AggregateIterable;
-import com.mongodb.client.FindIterable;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.model.TextSearchOptions;
-//test
-import com.mongodb.Block;
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.gridfs.*;
-import com.mongodb.client.gridfs.model.*;
-import org.bson.Document;
-import org.bson.types.ObjectId;
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.charset.StandardCharsets;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
 import static com.mongodb.client.model.Filters.eq;
 
+import ca.qc.cvm.dba.persinteret.entity.DashboardStats;
 import ca.qc.cvm.dba.persinteret.entity.Person;
+import ca.qc.cvm.dba.persinteret.entity.Photo;
 
 public class PersonDAO {
-	
-	
+	private static final int PAGE_IMAGE_PARALLELISM = 2;
+	// Caractres de cl (au-del du filtre) qui dfinissent un groupe de repres (voir getPeopleAnchors())
+	private static final int ANCHOR_PREFIX = Integer.getInteger("persinteret.list.anchorPrefix", 3);
+	// Champs de l'ancienne version d'une fiche utiles aprs une criture (tat appliqu, compteurs, photo, connexions)
+	private static final Bson PREVIOUS_FIELDS = Projections.include("id", "name", "status", "dateOfBirth", "hasPhoto", PhotoStore.FIELD, "connexions", OutboxRelay.APPLIED);
+	// Les fiches lues n'ont pas besoin des champs du relais (entres d'outbox, avec leurs photos)
+	private static final Bson PERSON_FIELDS = Projections.exclude(OutboxRelay.FIELD, OutboxRelay.APPLIED);
+	private static final Bson HAS_BIRTH_DATE = Filters.gte("dateOfBirth", Long.MIN_VALUE);
 
 	/**
 	 * Mthode permettant de retourner la liste des personnes de la base de donnes.
@@ -65,40 +74,538 @@ public class PersonDAO {
 	 */
 	public static List<Person> getPeopleList(String filterText, boolean withImage, int limit) {
 		final List<Person> peopleList = new ArrayList<Person>();
-		byte[] img = null;
+
+		if (!withImage) {
+			List<Person> cached = getCachedList(filterText, limit);
+
+			if (cached != null) {
+				return cached;
+			}
+		}
+
 		try {
 			MongoDatabase connection = MongoConnection.getConnection();
 			MongoCollection<Document> collection = connection.getCollection("personnes");
-			GridFSBucket bucket = GridFSBuckets.create(connection, "images");
-			FindIterable<Document> result;
-			Document reg = new Document();
-			reg.append("$regex", filterText + ".*");
-			reg.append("$options", "i");
-			Document query = new Document();
-			query.append("name", reg);
-			result = collection.find(query).limit(limit);
-			for (Document r : result) {
-				String name = (String) r.get("name");
-				if (withImage) {
-					GridFSDownloadStream downloadStream = bucket.openDownloadStream(name);
-					int fileLength = (int) downloadStream.getGridFSFile().getLength();
-					img = new byte[fileLength];
-					downloadStream.read(img);
-				}
-				peopleList.add(new Person(
-						name,
-						(String) r.get("codeName"),
-						(String) r.get("status"),
-						(String) r.get("dateOfBirth"),
-						null,
-						img));
+			List<Document> rows = collection.find(NameKey.prefixFilter(filterText))
+					.projection(PERSON_FIELDS)
+					.sort(Sorts.ascending(NameKey.FIELD, "name"))
+					.limit(limit)
+					.into(new ArrayList<Document>());
+
+			Map<String, byte[]> images = new HashMap<String, byte[]>();
+
+			if (withImage) {
+				images = loadImages(connection, rows);
+			}
+
+			for (Document r : rows) {
+				Person person = toPerson(r, images.get(r.getString("name")));
+				PersonCache.put(person);
+				peopleList.add(person);
+			}
+
+			if (!withImage) {
+				PersonStore.putList(filterText, limit, peopleList);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return peopleList;
+
+	}
+
+	/**
+	 * Relit une page de liste dj vue  partir des caches (mmoire, puis Berkeley JE)
+	 *
+	 * @return la page, ou null si une des fiches n'est plus en cache
+	 */
+	private static List<Person> getCachedList(String filterText, int limit) {
+		List<String> names = PersonStore.getListNames(filterText, limit);
+		List<Person> people = null;
+
+		if (names != null) {
+			people = new ArrayList<Person>(names.size());
+
+			for (int i = 0; i < names.size() && people != null; i++) {
+				Person person = getCachedPerson(names.get(i));
+
+				if (person == null) {
+					people = null;
+				}
+				else {
+					people.add(person);
+				}
+			}
+		}
+
+		return people;
+	}
+
+	private static Person getCachedPerson(String name) {
+		PersonStore.checkVersion();
+		Person person = PersonCache.get(name);
+
+		if (person == null) {
+			person = PersonStore.getPerson(name);
+
+			if (person != null) {
+				PersonCache.put(person);
+			}
+		}
+
+		return withLazyPhoto(person);
+	}
+
+	/**
+	 * Retourne la fiche d'une personne (sans la photo complte, voir getImage()).
+	 * Les fiches dj lues sont servies par PersonCache, puis PersonStore.
+	 *
+	 * @param name nom de la personne
+	 * @return la fiche, ou null si elle n'existe pas
+	 */
+	public static Person getPerson(String name) {
+		Person person = getCachedPerson(name);
+
+		if (person == null) {
+			try {
+				Document r = MongoConnection.getConnection().getCollection("personnes").find(eq("name", name)).projection(PERSON_FIELDS).first();
+
+				if (r != null) {
+					person = toPerson(r, null);
+					PersonCache.put(person);
+					PersonStore.putPerson(person);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return person;
+	}
+
+	/**
+	 * @param id id numrique de la personne
+	 * @return la fiche, ou null si elle n'existe pas
+	 */
+	public static Person getPersonById(long id) {
+		PersonStore.checkVersion();
+		Person person = PersonCache.getById(id);
+
+		if (person == null) {
+			person = PersonStore.getPersonById(id);
+
+			if (person == null) {
+				try {
+					Document r = MongoConnection.getConnection().getCollection("personnes").find(eq("id", id)).projection(PERSON_FIELDS).first();
+
+					if (r != null) {
+						person = toPerson(r, null);
+						PersonStore.putPerson(person);
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+
+			if (person != null) {
+				PersonCache.put(person);
+			}
+		}
+
+		return withLazyPhoto(person);
+	}
+
+	/**
+	 * Pagination par curseur (keyset) : retourne les personnes qui suivent, dans l'ordre
+	 * de la liste, la personne nomme afterName. Contrairement  skip(), le cot ne dpend
+	 * pas de la position de la page dans la liste. Les photos compltes ne sont pas incluses,
+	 * seulement les vignettes.
+	 *
+	 * @param filterText prfixe du nom, peut tre vide ou null
+	 * @param afterName nom de la dernire personne de la page prcdente (null pour la premire page)
+	 * @param limit taille de la page
+	 * @return la page
+	 */
+	public static List<Person> getPeoplePage(String filterText, String afterName, int limit) {
+		final List<Person> peopleList = new ArrayList<Person>();
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+
+			for (Document r : collection.find(keysetFilter(filterText, afterName))
+					.projection(PERSON_FIELDS)
+					.sort(Sorts.ascending(NameKey.FIELD, "name"))
+					.limit(limit)) {
+				Person person = toPerson(r, null);
+				PersonCache.put(person);
+				peopleList.add(person);
 			}
 		}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
 		return peopleList;
+	}
+
+	/**
+	 * Retourne uniquement les noms qui suivent afterName. La requte est couverte par l'index
+	 * {nameKey: 1, name: 1} (aucune fiche n'est lue), ce qui permet de calculer rapidement
+	 * les curseurs de pages loignes.
+	 *
+	 * @param filterText prfixe du nom, peut tre vide ou null
+	 * @param afterName nom de dpart (exclu), null pour le dbut de la liste
+	 * @param limit nombre maximal de noms
+	 * @return les noms, dans l'ordre de la liste
+	 */
+	public static List<String> getPeopleNames(String filterText, String afterName, int limit) {
+		final List<String> names = new ArrayList<String>();
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
 
+			for (Document r : collection.find(keysetFilter(filterText, afterName))
+					.projection(Projections.fields(Projections.include(NameKey.FIELD, "name"), Projections.excludeId()))
+					.sort(Sorts.ascending(NameKey.FIELD, "name"))
+					.limit(limit)) {
+				names.add(r.getString("name"));
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return names;
+	}
+
+	/**
+	 * Retourne le nom situ offset positions aprs afterName (0 pour le suivant), pour atteindre
+	 * une page loigne. Le skip parcourt l'index {nameKey: 1, name: 1} sur le serveur; un seul
+	 * nom est transfr, peu importe la distance.
+	 *
+	 * @param filterText prfixe du nom, peut tre vide ou null
+	 * @param afterName nom de dpart (exclu), null pour le dbut de la liste
+	 * @param offset nombre de noms  sauter
+	 * @return le nom, ou null si la liste est plus courte
+	 */
+	public static String getPeopleNameAt(String filterText, String afterName, int offset) {
+		String name = null;
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+			Document r = collection.find(keysetFilter(filterText, afterName))
+					.projection(Projections.fields(Projections.include(NameKey.FIELD, "name"), Projections.excludeId()))
+					.sort(Sorts.ascending(NameKey.FIELD, "name"))
+					.skip(offset)
+					.limit(1)
+					.first();
+
+			if (r != null) {
+				name = r.getString("name");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return name;
+	}
+
+	/**
+	 * Retourne le nom situ offset positions  partir de fromName (0 pour fromName lui-mme).
+	 * Utilis  partir d'un repre (voir getPeopleAnchors()) : le skip est born par la taille
+	 * du groupe de ce repre, et non par la distance depuis le dernier curseur connu.
+	 *
+	 * @param filterText prfixe du nom, peut tre vide ou null
+	 * @param fromName nom de dpart (inclus)
+	 * @param offset nombre de noms  sauter
+	 * @return le nom, ou null si la liste est plus courte
+	 */
+	public static String getPeopleNameFrom(String filterText, String fromName, int offset) {
+		String name = null;
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+			Document r = collection.find(keysetFilter(filterText, fromName, true))
+					.projection(Projections.fields(Projections.include(NameKey.FIELD, "name"), Projections.excludeId()))
+					.sort(Sorts.ascending(NameKey.FIELD, "name"))
+					.skip(offset)
+					.limit(1)
+					.first();
+
+			if (r != null) {
+				name = r.getString("name");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return name;
+	}
+
+	/**
+	 * Repres de la liste : les fiches sont groupes par les ANCHOR_PREFIX premiers caractres de
+	 * leur cl (au-del du filtre), dans l'ordre de la liste. Pour chaque groupe : le premier nom
+	 * et le nombre de fiches. Un seul parcours de l'index {nameKey: 1, name: 1}, fait une fois par
+	 * liste en arrire-plan; ensuite, toute page est atteinte par un skip d'au plus un groupe.
+	 *
+	 * @param filterText prfixe du nom, peut tre vide ou null
+	 * @return premier nom de chaque groupe -> nombre de fiches du groupe, dans l'ordre de la liste
+	 */
+	public static Map<String, Long> getPeopleAnchors(String filterText) {
+		Map<String, Long> anchors = new LinkedHashMap<String, Long>();
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+			int length = NameKey.of(filterText).length() + ANCHOR_PREFIX;
+
+			for (Document group : collection.aggregate(Arrays.asList(
+					new Document("$match", NameKey.prefixFilter(filterText)),
+					new Document("$sort", new Document(NameKey.FIELD, 1).append("name", 1)),
+					new Document("$project", new Document("_id", 0).append(NameKey.FIELD, 1).append("name", 1)),
+					new Document("$group", new Document("_id", new Document("$substrCP", Arrays.asList("$" + NameKey.FIELD, 0, length)))
+							.append("first", new Document("$first", "$name"))
+							.append("count", new Document("$sum", 1))),
+					new Document("$sort", new Document("_id", 1))))) {
+				anchors.put(group.getString("first"), ((Number) group.get("count")).longValue());
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return anchors;
+	}
+
+	/**
+	 * Nombre de fiches dont le nom dbute par le prfixe donn (parcours de l'index seulement).
+	 * Sans filtre, la collection est compte directement : les compteurs statistiques ne
+	 * refltent une sauvegarde qu'une fois applique par le relais de l'outbox.
+	 */
+	public static long getPeopleCount(String filterText) {
+		long count = 0;
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+			count = collection.count(NameKey.prefixFilter(filterText));
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return count;
+	}
+
+	/**
+	 * Filtre prfixe + position strictement aprs afterName selon le tri (nameKey, name)
+	 */
+	private static Bson keysetFilter(String filterText, String afterName) {
+		return keysetFilter(filterText, afterName, false);
+	}
+
+	/**
+	 * Filtre prfixe + position aprs afterName (ou  partir de afterName si inclusive)
+	 */
+	private static Bson keysetFilter(String filterText, String afterName, boolean inclusive) {
+		Bson filter = NameKey.prefixFilter(filterText);
+
+		if (afterName != null) {
+			String afterKey = NameKey.of(afterName);
+			filter = Filters.and(filter, Filters.or(
+					Filters.gt(NameKey.FIELD, afterKey),
+					Filters.and(Filters.eq(NameKey.FIELD, afterKey), inclusive ? Filters.gte("name", afterName) : Filters.gt("name", afterName))));
+		}
+
+		return filter;
+	}
+
+	/**
+	 * Retourne la photo complte d'une personne, lue depuis le bucket GridFS "images".
+	 * Les listes utilisent plutt la vignette sauvegarde dans la fiche (voir Person.getThumbnailData()),
+	 * seul l'cran d'dition a besoin de la photo complte.
+	 *
+	 * @param name nom de la personne
+	 * @return la photo, ou null si la personne n'a pas de photo
+	 */
+	public static byte[] getImage(String name) {
+		byte[] img = PersonStore.getImage(name);
+
+		if (img != null) {
+			return img;
+		}
+
+		try {
+			MongoDatabase connection = MongoConnection.getConnection();
+			Document r = connection.getCollection("personnes").find(eq("name", name))
+					.projection(Projections.include("name", "hasPhoto", PhotoStore.FIELD)).first();
+			img = r == null ? null : loadImages(connection, Collections.singletonList(r)).get(name);
+
+			if (img != null) {
+				PersonStore.putImage(name, img);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return img;
+	}
+
+	/**
+	 * Retourne la photo complte d'une personne, dj dcode. Lorsque la photo n'est pas
+	 * en cache, elle est lue chunk par chunk dans un tampon rutilisable et dcode directement
+	 * depuis ce tampon (aucun tableau intermdiaire de la taille de la photo).
+	 *
+	 * @param name nom de la personne
+	 * @return l'image, ou null si la personne n'a pas de photo
+	 */
+	public static BufferedImage getDecodedImage(final String name) {
+		final BufferedImage[] image = new BufferedImage[1];
+		byte[] img = PersonStore.getImage(name);
+
+		try {
+			if (img != null) {
+				image[0] = ImageIO.read(new ByteArrayInputStream(img));
+			}
+			else {
+				MongoDatabase connection = MongoConnection.getConnection();
+				Document r = connection.getCollection("personnes").find(eq("name", name))
+						.projection(Projections.include("name", "hasPhoto", PhotoStore.FIELD)).first();
+				String filename = r == null ? null : PhotoStore.filenameOf(r);
+
+				if (filename != null) {
+					PhotoBatchLoader.forEach(connection, "images", Collections.singletonList(filename), BufferPool.forPhotos(),
+							new PhotoBatchLoader.PhotoReader() {
+
+						@Override
+						public void read(String filename, ByteBuffer data) throws Exception {
+							PersonStore.putImage(name, data.duplicate());
+							image[0] = ImageIO.read(new ByteArrayInputStream(data.array(), data.arrayOffset() + data.position(), data.remaining()));
+						}
+					});
+				}
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return image[0];
+	}
+
+	/**
+	 * Lecture en continu de photos compltes, sans passer par les caches (ex. pour un rapport
+	 * sur toutes les photos, qui ne doit pas vincer les photos utiles). Une photo partage par
+	 * plusieurs personnes n'est lue qu'une fois. Les tampons sont rutiliss d'un appel  l'autre.
+	 *
+	 * @param names noms des personnes
+	 * @param reader reoit chaque photo, avec son nom de fichier (hash du contenu)
+	 */
+	public static void readImages(Collection<String> names, PhotoBatchLoader.PhotoReader reader) {
+		try {
+			MongoDatabase connection = MongoConnection.getConnection();
+			Set<String> filenames = new HashSet<String>();
+
+			for (Document r : connection.getCollection("personnes").find(Filters.in("name", names))
+					.projection(Projections.include("name", "hasPhoto", PhotoStore.FIELD))) {
+				String filename = PhotoStore.filenameOf(r);
+
+				if (filename != null) {
+					filenames.add(filename);
+				}
+			}
+
+			PhotoBatchLoader.forEach(connection, "images", filenames, BufferPool.forPhotos(), reader);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Charge en lot les photos de fiches dj lues. Une photo partage par plusieurs
+	 * personnes n'est lue qu'une fois.
+	 *
+	 * @return dictionnaire nom de la personne -> photo
+	 */
+	private static Map<String, byte[]> loadImages(MongoDatabase connection, List<Document> rows) throws Exception {
+		Map<String, String> filenameByName = new HashMap<String, String>();
+
+		for (Document r : rows) {
+			String filename = PhotoStore.filenameOf(r);
+
+			if (filename != null) {
+				filenameByName.put(r.getString("name"), filename);
+			}
+		}
+
+		Map<String, byte[]> files = PhotoBatchLoader.load(connection, "images", new HashSet<String>(filenameByName.values()), PAGE_IMAGE_PARALLELISM);
+		Map<String, byte[]> images = new HashMap<String, byte[]>();
+
+		for (Map.Entry<String, String> entry : filenameByName.entrySet()) {
+			byte[] img = files.get(entry.getValue());
+
+			if (img != null) {
+				images.put(entry.getKey(), img);
+			}
+		}
+
+		return images;
+	}
+
+	/**
+	 * Construit une personne  partir d'une fiche de la collection "personnes"
+	 */
+	@SuppressWarnings("unchecked")
+	private static Person toPerson(Document r, byte[] img) {
+		Person person = new Person(
+				(String) r.get("name"),
+				(String) r.get("codeName"),
+				(String) r.get("status"),
+				birthDateToString(r.get("dateOfBirth")),
+				(List<String>) r.get("connexions"),
+				img);
+		Object id = r.get("id");
+		person.setId(id instanceof Number ? ((Number) id).longValue() : null);
+		Binary thumbnail = (Binary) r.get("thumbnail");
+		person.setThumbnailData(thumbnail == null ? null : thumbnail.getData());
+		person.setPhotoStored(img != null || PhotoStore.filenameOf(r) != null);
+
+		return img == null ? withLazyPhoto(person, person.isPhotoStored()) : person;
+	}
+
+	/**
+	 * Les fiches servies par les caches n'ont pas de photo : isPhotoStored() indique s'il y en a une
+	 * (une photo peut exister sans vignette, par exemple pour une fiche antrieure aux vignettes).
+	 */
+	private static Person withLazyPhoto(Person person) {
+		return withLazyPhoto(person, person != null && person.isPhotoStored());
+	}
+
+	/**
+	 * Associe  une fiche sa photo complte, qui ne sera lue qu'au premier getImageData()
+	 */
+	private static Person withLazyPhoto(Person person, boolean hasPhoto) {
+		if (person != null && person.getPhoto() == null && hasPhoto) {
+			final String name = person.getName();
+
+			person.setPhoto(new Photo(new Photo.Loader() {
+
+				@Override
+				public byte[] load() {
+					return getImage(name);
+				}
+			}));
+		}
+
+		return person;
+	}
+
+	/**
+	 * La date de naissance est sauvegarde en jours depuis 1970-01-01 (voir toDocument()).
+	 * Les anciennes fiches peuvent encore contenir une chane YYYY-MM-DD.
+	 */
+	private static String birthDateToString(Object value) {
+		String date = null;
+
+		if (value instanceof Number) {
+			date = LocalDate.ofEpochDay(((Number) value).longValue()).toString();
+		}
+		else if (value instanceof String) {
+			date = (String) value;
+		}
+
+		return date;
 	}
 
 	/**
@@ -128,39 +635,290 @@ public class PersonDAO {
 
 			MongoDatabase connection = MongoConnection.getConnection();
 			MongoCollection<Document> collection = connection.getCollection("personnes");
-			GridFSBucket bucket = GridFSBuckets.create(connection, "images");
-			Document doc = new Document ();
-			InputStream imgStream = new ByteArrayInputStream(person.getImageData());
-			doc.append("id", person.getId()); //todo
-			doc.append("name", person.getName());
-			doc.append("codeName", person.getCodeName());
-			doc.append("dateOfBirth", person.getDateOfBirth());
-			doc.append("status", person.getStatus());
-			if (person.getId() == null){
-				collection.insertOne(doc);
+			boolean isNew = person.getId() == null;
+			// Une photo dj sauvegarde (lue  la demande), ou absente d'une fiche existante, n'est ni relue
+			// ni rcrite : seules une nouvelle photo et un retrait explicite (removePhoto()) la remplacent
+			boolean withPhoto = isNew || person.isPhotoRemoved() || (person.getPhoto() != null && person.getPhoto().isNew());
+			byte[] thumbnail = withPhoto ? Thumbnails.create(person.getImageData()) : person.getThumbnailData();
+			if (isNew) {
+				person.setId(IdGenerator.forPeople().nextId());
+			}
+			Document doc = toDocument(person, thumbnail, withPhoto);
+			// Photo, connexions inverses, compteurs et graphe sont appliqus par le relais de l'outbox :
+			// l'entre est enregistre dans la mme criture (atomique) que la fiche
+			Document entry = OutboxRelay.entry(doc, withPhoto ? person.getImageData() : null);
+			if (isNew){
+				collection.insertOne(doc.append(OutboxRelay.APPLIED, null).append(OutboxRelay.FIELD, Arrays.asList(entry)));
+				success = true;
+			}
+			else{
+				// Sans upsert : une fiche supprime entre-temps (id prim) n'est pas recre
+				Document before = collection.findOneAndUpdate(eq("id", person.getId()),
+						Updates.combine(new Document("$set", doc), Updates.push(OutboxRelay.FIELD, entry)),
+						new FindOneAndUpdateOptions().projection(PREVIOUS_FIELDS).returnDocument(ReturnDocument.BEFORE));
+				OutboxRelay.initApplied(collection, before);
+				success = before != null;
 			}
-			else{ //todo
-				collection.replaceOne(eq("name", person.getName()),doc);
-
-				//bucket.delete();
 
+			if (success) {
+				person.setThumbnailData(thumbnail);
+				if (withPhoto) {
+					person.setPhotoStored(person.getImageData() != null);
+					person.setPhotoRemoved(false);
+				}
+				PersonCache.put(person);
+				PersonStore.putPerson(person);
+				if (withPhoto) {
+					PersonStore.putImage(person.getName(), person.getImageData());
+					// La photo est maintenant sauvegarde : une nouvelle sauvegarde ne la renverra pas
+					person.setPhoto(null);
+					withLazyPhoto(person);
+				}
+				PersonStore.invalidateLists();
+				OutboxRelay.wakeUp();
 			}
-			bucket.uploadFromStream(person.getName(),imgStream);
-			collection.createIndex(Indexes.ascending("name"), new IndexOptions().unique(true));
-			success = true;
 
 		return success;
 	}
 	
 	/**
-	 * Suppression des donnes/fiche d'une personne
-	 * 
+	 * Insertion groupe de nouvelles fiches (importation en lot).
+	 *
+	 * Les fiches sont insres avec un seul insertMany non ordonn : un nom dj existant
+	 * n'empche pas l'insertion des autres. Les compteurs statistiques sont mis  jour
+	 * en un seul $inc pour tout le lot. Les photos ne sont pas tlverses ici, voir savePhoto().
+	 *
+	 * Si la vignette d'une personne est dj calcule (getThumbnailData()), elle est rutilise.
+	 *
+	 * @param people nouvelles personnes (id null)
+	 * @return les personnes effectivement insres
+	 */
+	public static List<Person> saveAll(List<Person> people) {
+		List<Person> inserted = new ArrayList<Person>();
+
+		if (people.isEmpty()) {
+			return inserted;
+		}
+
+		MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+		List<Document> docs = new ArrayList<Document>();
+
+		for (Person person : people) {
+			person.setId(IdGenerator.forPeople().nextId());
+			byte[] thumbnail = person.getThumbnailData() != null ? person.getThumbnailData() : Thumbnails.create(person.getImageData());
+			person.setThumbnailData(thumbnail);
+			person.setPhotoStored(person.getImageData() != null);
+			docs.add(toDocument(person, thumbnail, true));
+		}
+
+		Set<Integer> failed = new HashSet<Integer>();
+
+		// Insertion et compteurs ensemble : une vrification des compteurs ne peut pas s'intercaler
+		synchronized (OutboxRelay.LOCK) {
+			try {
+				collection.insertMany(docs, new InsertManyOptions().ordered(false));
+			}
+			catch (MongoBulkWriteException e) {
+				for (BulkWriteError error : e.getWriteErrors()) {
+					failed.add(error.getIndex());
+				}
+			}
+
+			List<Document> insertedDocs = new ArrayList<Document>();
+
+			for (int i = 0; i < people.size(); i++) {
+				if (!failed.contains(i)) {
+					inserted.add(people.get(i));
+					insertedDocs.add(docs.get(i));
+				}
+			}
+
+			StatsCounters.applyAll(insertedDocs);
+		}
+		addExistingConnexions(collection, inserted);
+		addReverseConnexions(collection, inserted);
+
+		PersonGraph.syncAll(inserted);
+
+		for (Person person : inserted) {
+			PersonCache.put(person);
+		}
+
+		PersonStore.invalidateLists();
+
+		return inserted;
+	}
+
+	/**
+	 * Une personne peut tre connue avant d'exister : une fiche dj prsente (ex. insre
+	 * plus tt par une importation parallle, dans le dsordre) la nomme dans ses connexions,
+	 * mais son $addToSet inverse n'a trouv aucune fiche. Ces connexions sont ajoutes aux
+	 * nouvelles fiches (une requte guide par l'index {connexions: 1}, un seul bulkWrite),
+	 * avant la synchronisation du graphe.
+	 */
+	private static void addExistingConnexions(MongoCollection<Document> collection, List<Person> inserted) {
+		Map<String, Person> byName = new HashMap<String, Person>();
+
+		for (Person person : inserted) {
+			byName.put(person.getName(), person);
+		}
+
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		Set<String> changed = new HashSet<String>();
+
+		for (Document other : collection.find(Filters.in("connexions", byName.keySet())).projection(Projections.include("name", "connexions"))) {
+			String otherName = other.getString("name");
+
+			for (Object name : (List<?>) other.get("connexions")) {
+				Person person = byName.get(name);
+
+				if (person != null && !person.getName().equals(otherName)
+						&& (person.getConnexions() == null || !person.getConnexions().contains(otherName))) {
+					List<String> connexions = new ArrayList<String>(person.getConnexions() == null ? new ArrayList<String>() : person.getConnexions());
+					connexions.add(otherName);
+					person.setConnexions(connexions);
+					writes.add(new UpdateOneModel<Document>(eq("name", person.getName()), Updates.addToSet("connexions", otherName)));
+					changed.add(person.getName());
+				}
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			collection.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+			invalidate(changed);
+		}
+	}
+
+	/**
+	 * Ajoute, en un seul bulkWrite, les connexions inverses d'un lot de nouvelles fiches
+	 */
+	private static void addReverseConnexions(MongoCollection<Document> collection, List<Person> inserted) {
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		Set<String> changed = new HashSet<String>();
+
+		for (Person person : inserted) {
+			if (person.getConnexions() != null) {
+				for (String other : person.getConnexions()) {
+					if (!other.equals(person.getName())) {
+						OutboxRelay.reverseWrite(writes, other, person.getName(), true);
+						changed.add(other);
+					}
+				}
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			collection.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+			invalidate(changed);
+		}
+	}
+
+	/**
+	 * Retire des caches les fiches modifies indirectement (connexions inverses)
+	 */
+	static void invalidate(Collection<String> names) {
+		for (String name : names) {
+			Person person = new Person();
+			person.setName(name);
+			PersonCache.remove(person);
+		}
+
+		PersonStore.removeAll(names);
+	}
+
+	/**
+	 * Ajoute la rfrence de la photo d'une personne insre par saveAll(). La photo n'est
+	 * tlverse dans GridFS que si elle n'y est pas dj (mme contenu).
+	 *
+	 * @return true si la photo a t tlverse, false si elle tait dj stocke
+	 */
+	public static boolean savePhoto(Person person) {
+		return PhotoStore.acquire(PhotoStore.hashOf(person.getImageData()), person.getId(), person.getImageData());
+	}
+
+	/**
+	 * Construit la fiche MongoDB d'une personne
+	 *
+	 * @param withPhoto false pour omettre la photo et la vignette (photo inchange)
+	 */
+	private static Document toDocument(Person person, byte[] thumbnail, boolean withPhoto) {
+		Document doc = new Document ();
+		doc.append("id", person.getId());
+		doc.append("name", person.getName());
+		doc.append(NameKey.FIELD, NameKey.of(person.getName()));
+		doc.append("codeName", person.getCodeName());
+		// En jours depuis 1970-01-01 : indexable, et l'ge moyen se calcule par simple arithmtique
+		LocalDate birthDate = person.getBirthDate();
+		doc.append("dateOfBirth", birthDate != null ? (Object) birthDate.toEpochDay() : person.getDateOfBirth());
+		doc.append("status", person.getStatus());
+		doc.append("connexions", person.getConnexions());
+
+		if (withPhoto) {
+			doc.append("thumbnail", thumbnail == null ? null : new Binary(thumbnail));
+			doc.append(PhotoStore.FIELD, PhotoStore.hashOf(person.getImageData()));
+			doc.append("hasPhoto", person.getImageData() != null);
+		}
+
+		return doc;
+	}
+
+	/**
+	 * Suppression des donnes/fiche d'une personne, en cascade : une seule opration par stockage.
+	 *  - MongoDB : la fiche (findOneAndDelete), puis ses connexions inverses dans les autres fiches,
+	 *    avec un seul updateMany $pull guid par l'index multicl {connexions: 1}
+	 *  - GridFS  : sa rfrence vers la photo (fichier et chunks supprims si elle tait la dernire)
+	 *  - Neo4j   : son noeud et toutes ses relations (DETACH DELETE)
+	 *  - caches  : sa fiche et celles des personnes qui la connaissaient
+	 *
+	 * Le cot ne dpend que du nombre de personnes qui la connaissent (entres d'index), jamais
+	 * du nombre total de fiches.
+	 *
 	 * @param person
 	 * @return true si succs, false sinon
 	 */
 	public static boolean delete(Person person) {
 		boolean success = true;
 		
+		// Le relais ne peut pas appliquer une entre de cette fiche pendant (ou aprs) sa suppression
+		synchronized (OutboxRelay.LOCK) {
+			try {
+				MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+				Document before = collection.findOneAndDelete(eq("name", person.getName()),
+						new FindOneAndDeleteOptions().projection(PREVIOUS_FIELDS));
+				// Retire des caches une fois supprime : une lecture concurrente ne peut plus la remettre en cache
+				PersonCache.remove(person);
+				PersonStore.remove(person);
+
+				// Les fiches modifies par le $pull sont celles qui la nomment (et non ses propres connexions)
+				Set<String> listers = new HashSet<String>();
+
+				for (Document lister : collection.find(eq("connexions", person.getName())).projection(Projections.include("name"))) {
+					listers.add(lister.getString("name"));
+				}
+
+				// Aussi dans leur tat appliqu (avant le $pull, pour que l'index {connexions: 1} guide la requte) :
+				// leur prochaine sauvegarde n'y verra pas un retrait  propager
+				collection.updateMany(Filters.and(eq("connexions", person.getName()), eq(OutboxRelay.APPLIED + ".connexions", person.getName())),
+						Updates.pull(OutboxRelay.APPLIED + ".connexions", person.getName()));
+				collection.updateMany(eq("connexions", person.getName()), Updates.pull("connexions", person.getName()));
+
+				// Les entres d'outbox en attente disparaissent avec la fiche : seul l'tat dj appliqu est dfait
+				Document applied = before == null ? null : OutboxRelay.appliedState(before);
+
+				if (applied != null) {
+					StatsCounters.apply(applied, null);
+					PhotoStore.release(applied, before.get("id"));
+				}
+
+				PersonGraph.remove(person.getName());
+				invalidate(listers);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+				success = false;
+			}
+		}
+		
 		return success;
 	}
 	
@@ -172,9 +930,45 @@ public class PersonDAO {
 	public static boolean deleteAll() {
 		boolean success = true;
 
+		PersonCache.clear();
+
+		// Un lot du relais en cours se termine avant la suppression totale
+		synchronized (OutboxRelay.LOCK) {
+			try {
+				MongoDatabase connection = MongoConnection.getConnection();
+				connection.getCollection("personnes").drop();
+				PhotoStore.clear();
+				SchemaManager.ensureSchema();
+				StatsCounters.reset();
+
+				PersonGraph.clear();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+				success = false;
+			}
+
+			// Aprs la suppression, pour que les autres clients ne remettent pas en cache des fiches supprimes
+			PersonStore.clear();
+		}
+
 		return success;
 	}
 	
+	/**
+	 * Rseau de connexions d'une personne, jusqu' maxDepth connexions de distance,
+	 * retourn au fur et  mesure (personnes et connexions). L'itrateur doit tre ferm
+	 * (try-with-resources).
+	 *
+	 * @param name personne de dpart
+	 * @param maxDepth nombre maximal de connexions  franchir
+	 * @param statuses statuts des personnes  parcourir (null ou vide pour tous)
+	 * @param limit nombre maximal d'lments retourns
+	 */
+	public static Neighborhood getNeighborhood(String name, int maxDepth, Collection<String> statuses, int limit) {
+		return PersonGraph.neighborhood(name, maxDepth, statuses, limit);
+	}
+
 	/**
 	 * Mthode qui retourne le ratio de personnes en libert par rapport au nombre total de fiches.
 	 * 
@@ -182,16 +976,29 @@ public class PersonDAO {
 	 */
 	public static int getFreeRatio() {
 		int num = 0;
-		
+		try {
+			num = StatsCounters.getFreeRatio();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
 		return num;
 	}
 	
 	/**
-	 * Nombre de photos actuellement sauvegardes dans le systme
+	 * Nombre de photos actuellement sauvegardes dans le systme. Une photo partage
+	 * par plusieurs personnes n'est stocke (et compte) qu'une fois, voir PhotoStore.
 	 * @return nombre
 	 */
 	public static long getPhotoCount() {
-		return 0;
+		long count = 0;
+		try {
+			count = PhotoStore.getPhotoCount();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return count;
 	}
 	
 	/**
@@ -199,9 +1006,14 @@ public class PersonDAO {
 	 * @return nombre
 	 */
 	public static long getPeopleCount() {
-		MongoDatabase connection = MongoConnection.getConnection();
-		MongoCollection<Document> collection = connection.getCollection("personnes");
-		return collection.count();
+		long count = 0;
+		try {
+			count = StatsCounters.getPeopleCount();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return count;
 	}
 		
 	/**
@@ -210,7 +1022,24 @@ public class PersonDAO {
 	 * @return nom de la personne
 	 */
 	public static String getYoungestPerson() {
-		return "--";
+		String name = "--";
+		try {
+			MongoCollection<Document> collection = MongoConnection.getConnection().getCollection("personnes");
+			// Parcours inverse de l'index {dateOfBirth: 1}, limit aux dates numriques
+			Document youngest = collection.find(HAS_BIRTH_DATE)
+					.sort(Sorts.descending("dateOfBirth"))
+					.projection(Projections.include("name"))
+					.limit(1)
+					.first();
+
+			if (youngest != null) {
+				name = youngest.getString("name");
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return name;
 	}
 	
 	/**
@@ -221,8 +1050,18 @@ public class PersonDAO {
 	 * @return nom de la personne
 	 */
 	public static String getNextTargetName() {
-		
-		return "--";
+		String name = "--";
+		try {
+			String target = PersonGraph.getNextTargetName();
+
+			if (target != null) {
+				name = target;
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return name;
 	}
 	
 	/**
@@ -232,6 +1071,41 @@ public class PersonDAO {
 	 */
 	public static int getAverageAge() {
 		int resultat = 0;
+		try {
+			resultat = StatsCounters.getAverageAge();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
 		return resultat;
 	}
+
+	/**
+	 * Statistiques du tableau de bord, lues dans les compteurs incrmentaux (voir StatsCounters) :
+	 * une lecture du document de compteurs, plus la plus jeune personne (index {dateOfBirth: 1})
+	 * et la prochaine cible (Neo4j). Aucun parcours des fiches  l'affichage : l'agrgation
+	 * $facet (StatsCounters.aggregate()) n'est excute que si les compteurs n'existent pas
+	 * encore, et priodiquement par le relais de l'outbox pour les vrifier.
+	 *
+	 * @return un instantan immuable des statistiques
+	 */
+	public static DashboardStats getDashboardStats() {
+		long total = 0;
+		int freeRatio = 0;
+		int averageAge = 0;
+		Map<String, Long> countsByStatus = new HashMap<String, Long>();
+
+		try {
+			Document stats = StatsCounters.read();
+			total = stats.get("total") instanceof Number ? ((Number) stats.get("total")).longValue() : 0;
+			freeRatio = StatsCounters.getFreeRatio(stats);
+			averageAge = StatsCounters.getAverageAge(stats);
+			countsByStatus = StatsCounters.getCountsByStatus(stats);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+
+		return new DashboardStats(total, getPhotoCount(), freeRatio, averageAge, getYoungestPerson(), getNextTargetName(), countsByStatus);
+	}
 }
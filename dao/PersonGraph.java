@@ -0,0 +1,209 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.neo4j.driver.Record;
+import org.neo4j.driver.StatementResult;
+import org.neo4j.driver.Transaction;
+import org.neo4j.driver.TransactionWork;
+
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Graphe des connexions entre personnes, conserv dans Neo4j :
+ * (:Person {name, status})-[:CONNAIT]-(:Person)
+ *
+ * Le graphe est maintenu  jour par PersonDAO.save() et permet de rpondre
+ *  getNextTargetName() en une seule requte Cypher agrge.
+ *
+ * Chaque mthode est une unit de travail (voir Neo4jConnection.read()/write()).
+ * syncAll() envoie un lot complet de personnes en une seule requte UNWIND par transaction.
+ */
+public class PersonGraph {
+	private static final int BATCH_SIZE = 1000;
+	private static final String SYNC_QUERY = "UNWIND $rows AS row "
+										   + "MERGE (p:Person {name: row.name}) SET p.status = row.status "
+										   + "WITH p, row "
+										   + "OPTIONAL MATCH (p)-[r:CONNAIT]-(o:Person) WHERE NOT o.name IN row.connexions "
+										   + "DELETE r "
+										   + "WITH DISTINCT p, row "
+										   + "UNWIND row.connexions AS c "
+										   + "MERGE (o:Person {name: c}) "
+										   + "MERGE (p)-[:CONNAIT]-(o)";
+	private static boolean indexReady = false;
+
+	/**
+	 * Synchronise le noeud d'une personne (statut) ainsi que ses relations CONNAIT.
+	 * Les relations qui ne font plus partie des connexions sont retires.
+	 *
+	 * @param person personne sauvegarde
+	 */
+	public static void sync(Person person) {
+		syncAll(Collections.singletonList(person));
+	}
+
+	/**
+	 * Synchronise un lot de personnes : une requte UNWIND (et une transaction) par tranche
+	 * de BATCH_SIZE personnes, au lieu d'une requte par personne.
+	 *
+	 * @param people personnes sauvegardes
+	 */
+	public static void syncAll(List<Person> people) {
+		ensureIndex();
+
+		for (int start = 0; start < people.size(); start += BATCH_SIZE) {
+			List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+			for (Person person : people.subList(start, Math.min(people.size(), start + BATCH_SIZE))) {
+				Map<String, Object> row = new HashMap<String, Object>();
+				row.put("name", person.getName());
+				row.put("status", person.getStatus());
+				row.put("connexions", person.getConnexions() == null ? new ArrayList<String>() : person.getConnexions());
+				rows.add(row);
+			}
+
+			Map<String, Object> params = new HashMap<String, Object>();
+			params.put("rows", rows);
+			Neo4jConnection.write(SYNC_QUERY, params);
+		}
+	}
+
+	/**
+	 * Retire une personne (et ses relations) du graphe
+	 */
+	public static void remove(String name) {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("name", name);
+
+		Neo4jConnection.write("MATCH (p:Person {name: $name}) DETACH DELETE p", params);
+	}
+
+	/**
+	 * Vide compltement le graphe des personnes
+	 */
+	public static void clear() {
+		Neo4jConnection.write("MATCH (p:Person) DETACH DELETE p", new HashMap<String, Object>());
+	}
+
+	/**
+	 * Personne "Libre" connecte au plus grand nombre de personnes "Disparu" ou "Mort".
+	 * En cas d'galit, le premier nom en ordre alphabtique est retourn.
+	 *
+	 * @return le nom, ou null si aucune personne ne correspond
+	 */
+	public static String getNextTargetName() {
+		ensureIndex();
+
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("free", "Libre");
+		params.put("lost", Arrays.asList("Disparu", "Mort"));
+
+		return Neo4jConnection.read(new TransactionWork<String>() {
+
+			@Override
+			public String execute(Transaction tx) {
+				StatementResult result = tx.run("MATCH (p:Person {status: $free})-[:CONNAIT]-(o:Person) "
+											  + "WHERE o.status IN $lost "
+											  + "RETURN p.name AS name, count(DISTINCT o) AS total "
+											  + "ORDER BY total DESC, name ASC LIMIT 1", params);
+				String name = null;
+
+				if (result.hasNext()) {
+					Record row = result.next();
+					name = row.get("name").asString();
+				}
+
+				return name;
+			}
+		});
+	}
+
+	/**
+	 * Rseau d'une personne, lu en continu (voir Neighborhood). L'itrateur doit tre ferm.
+	 *
+	 * @param name personne de dpart
+	 * @param maxDepth nombre maximal de connexions  franchir (ex: 2 ou 3)
+	 * @param statuses statuts des personnes  parcourir (null ou vide pour tous)
+	 * @param limit nombre maximal d'lments retourns
+	 */
+	public static Neighborhood neighborhood(String name, int maxDepth, Collection<String> statuses, int limit) {
+		ensureIndex();
+
+		return new Neighborhood(name, maxDepth, statuses, limit);
+	}
+
+	/**
+	 * Contrainte d'unicit sur :Person(name), ncessaire pour que les MERGE concurrents
+	 * (relais de l'outbox, import en lot) ne crent pas de noeuds en double.
+	 * Un ancien index simple est remplac et les doublons dj prsents sont fusionns.
+	 * Le drapeau n'est lev qu'en cas de succs : un chec (ex: serveur absent) sera retent.
+	 */
+	private static synchronized void ensureIndex() {
+		if (!indexReady) {
+			try {
+				String uniqueness = Neo4jConnection.read(new TransactionWork<String>() {
+
+					@Override
+					public String execute(Transaction tx) {
+						StatementResult result = tx.run("CALL db.indexes() YIELD labelsOrTypes, properties, uniqueness "
+													  + "WHERE labelsOrTypes = ['Person'] AND properties = ['name'] "
+													  + "RETURN uniqueness");
+
+						return result.hasNext() ? result.next().get("uniqueness").asString() : null;
+					}
+				});
+
+				if (!"UNIQUE".equals(uniqueness)) {
+					if (uniqueness != null) {
+						Neo4jConnection.write("DROP INDEX ON :Person(name)", new HashMap<String, Object>());
+					}
+
+					while (mergeDuplicates() > 0) {
+						// un nom en double  la fois
+					}
+
+					Neo4jConnection.write("CREATE CONSTRAINT ON (p:Person) ASSERT p.name IS UNIQUE", new HashMap<String, Object>());
+				}
+
+				indexReady = true;
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Fusionne les noeuds d'un seul nom en double : les relations des doublons sont reportes
+	 * sur le noeud conserv, puis les doublons sont supprims. Un nom par transaction, pour que
+	 * les relations vers un autre groupe de doublons soient reportes lorsque ce groupe est trait.
+	 *
+	 * @return nombre de noeuds supprims (0 lorsqu'il n'y a plus de doublons)
+	 */
+	private static int mergeDuplicates() {
+		return Neo4jConnection.write(new TransactionWork<Integer>() {
+
+			@Override
+			public Integer execute(Transaction tx) {
+				StatementResult result = tx.run("MATCH (p:Person) "
+											  + "WITH p.name AS name, collect(p) AS nodes WHERE size(nodes) > 1 "
+											  + "WITH head(nodes) AS keep, tail(nodes) AS dups LIMIT 1 "
+											  + "UNWIND dups AS d "
+											  + "OPTIONAL MATCH (d)-[:CONNAIT]-(o:Person) WHERE o <> keep AND NOT o IN dups "
+											  + "WITH keep, d, collect(o) AS others "
+											  + "FOREACH (o IN others | MERGE (keep)-[:CONNAIT]-(o)) "
+											  + "SET keep.status = coalesce(keep.status, d.status) "
+											  + "DETACH DELETE d "
+											  + "RETURN count(d) AS total");
+
+				return result.hasNext() ? result.next().get("total").asInt() : 0;
+			}
+		});
+	}
+}
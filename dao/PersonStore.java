@@ -0,0 +1,539 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.bind.tuple.StringBinding;
+import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
+import com.sleepycat.je.Database;
+import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.LockMode;
+import com.sleepycat.je.OperationStatus;
+
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Cache local persistant (Berkeley JE) plac devant MongoDB.
+ *
+ * Les fiches, les photos et les pages de liste sont conserves sur disque (dossier database/)
+ * et survivent donc  un redmarrage : le premier cran est servi localement.
+ *
+ * Cls utilises :
+ *  - "gen"                 gnration des fiches/photos (incrmente par clear())
+ *  - "listgen"             gnration des pages de liste (incrmente  chaque criture)
+ *  - "version"             dernire version serveur connue (voir plus bas)
+ *  - "n:" + nom            fiche d'une personne
+ *  - "i:" + id             nom de la personne associe  l'id
+ *  - "img:" + nom          photo complte
+ *  - "q:" + filtre + limit noms d'une page de liste
+ *
+ * Chaque valeur est prfixe de la gnration en vigueur lors de son criture. Une valeur
+ * dont la gnration ne correspond plus est considre absente, ce qui permet d'invalider
+ * tout le cache en une seule criture.
+ *
+ * Le cache est li  une version serveur : le document {_id: "cache", value} de la collection
+ * MongoDB "counters", incrment aprs chaque criture (invalidateLists(), remove(), clear()).
+ * Au plus une fois par CHECK_MILLIS, une lecture en arrire-plan compare cette version  celle
+ * conserve localement; si elles diffrent (autre client, criture faite pendant que l'application
+ * tait ferme), tout le cache est invalid.
+ */
+public class PersonStore {
+	private static final String GENERATION_KEY = "gen";
+	private static final String LIST_GENERATION_KEY = "listgen";
+	private static final String VERSION_KEY = "version";
+	private static final String VERSION_COUNTER = "cache";
+	private static final long CHECK_MILLIS = Long.getLong("persinteret.cache.checkMillis", 1000);
+	private static final PersonBinding PERSON_BINDING = new PersonBinding();
+
+	private static long generation = -1;
+	private static long listGeneration = -1;
+	private static long version = -1;
+	// Amorc  l'ouverture : les premires lectures sont servies localement, puis revalides en arrire-plan
+	private static long checkedAt = System.currentTimeMillis();
+	private static boolean checking = false;
+	private static long writes = 0;
+
+	/**
+	 * @param name nom de la personne
+	 * @return la fiche en cache (sans photo complte), ou null
+	 */
+	public static Person getPerson(String name) {
+		Person person = null;
+		try {
+			checkVersion();
+			TupleInput input = read("n:" + name, getGeneration());
+
+			if (input != null) {
+				person = PERSON_BINDING.entryToObject(input);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return person;
+	}
+
+	/**
+	 * @param id id numrique de la personne
+	 * @return la fiche en cache, ou null
+	 */
+	public static Person getPersonById(long id) {
+		Person person = null;
+		try {
+			checkVersion();
+			TupleInput input = read("i:" + id, getGeneration());
+
+			if (input != null) {
+				person = getPerson(input.readString());
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return person;
+	}
+
+	/**
+	 * criture directe (write-through) d'une fiche. La photo complte n'est pas conserve ici,
+	 * voir putImage(). Si la personne a t renomme, l'ancienne fiche et sa photo sont retires.
+	 */
+	public static void putPerson(Person person) {
+		try {
+			long gen = getGeneration();
+
+			if (person.getId() != null) {
+				TupleInput previous = read("i:" + person.getId(), gen);
+				String oldName = previous == null ? null : previous.readString();
+
+				if (oldName != null && !oldName.equals(person.getName())) {
+					Database db = BerkeleyConnection.getConnection();
+					db.delete(null, key("n:" + oldName));
+					db.delete(null, key("img:" + oldName));
+				}
+			}
+
+			TupleOutput output = header(gen);
+			PERSON_BINDING.objectToEntry(person, output);
+			write("n:" + person.getName(), output);
+
+			if (person.getId() != null) {
+				write("i:" + person.getId(), header(gen).writeString(person.getName()));
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static byte[] getImage(String name) {
+		byte[] img = null;
+		try {
+			checkVersion();
+			TupleInput input = read("img:" + name, getGeneration());
+
+			if (input != null) {
+				img = readBytes(input);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		return img;
+	}
+
+	public static void putImage(String name, byte[] img) {
+		try {
+			TupleOutput output = header(getGeneration());
+			writeBytes(output, img);
+			write("img:" + name, output);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * crit une photo directement depuis un tampon (entre position et limit)
+	 */
+	public static void putImage(String name, ByteBuffer img) {
+		try {
+			TupleOutput output = header(getGeneration());
+			output.writeInt(img.remaining());
+			output.writeFast(img.array(), img.arrayOffset() + img.position(), img.remaining());
+			write("img:" + name, output);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Retourne les noms d'une page de liste dj vue, pourvu qu'aucune criture n'ait eu lieu depuis.
+	 * Les fiches elles-mmes sont relues avec getPerson() (ou dans PersonCache).
+	 *
+	 * @return les noms, ou null si la page doit tre relue dans MongoDB
+	 */
+	public static List<String> getListNames(String filterText, int limit) {
+		List<String> names = null;
+		try {
+			checkVersion();
+			TupleInput input = read(listKey(filterText, limit), getListGeneration());
+
+			if (input != null) {
+				int size = input.readInt();
+				names = new ArrayList<String>(size);
+
+				for (int i = 0; i < size; i++) {
+					names.add(input.readString());
+				}
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			names = null;
+		}
+		return names;
+	}
+
+	public static void putList(String filterText, int limit, List<Person> people) {
+		try {
+			TupleOutput output = header(getListGeneration());
+			output.writeInt(people.size());
+
+			for (Person person : people) {
+				output.writeString(person.getName());
+				putPerson(person);
+			}
+
+			write(listKey(filterText, limit), output);
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Retire une personne du cache et invalide les pages de liste
+	 */
+	public static void remove(Person person) {
+		try {
+			Database db = BerkeleyConnection.getConnection();
+			db.delete(null, key("n:" + person.getName()));
+			db.delete(null, key("img:" + person.getName()));
+
+			if (person.getId() != null) {
+				db.delete(null, key("i:" + person.getId()));
+			}
+
+			invalidateLists();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Retire plusieurs personnes du cache (par nom), avec une seule invalidation des pages de liste
+	 */
+	public static void removeAll(Collection<String> names) {
+		try {
+			Database db = BerkeleyConnection.getConnection();
+
+			for (String name : names) {
+				db.delete(null, key("n:" + name));
+				db.delete(null, key("img:" + name));
+			}
+
+			invalidateLists();
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Invalide les pages de liste ( appeler aprs toute criture, une fois celle-ci faite
+	 * dans MongoDB : la version serveur est incrmente pour les autres clients)
+	 */
+	public static synchronized void invalidateLists() {
+		invalidateLocalLists();
+		written();
+	}
+
+	/**
+	 * Invalide tout le contenu du cache, en O(1)
+	 */
+	public static synchronized void clear() {
+		clearLocal();
+		written();
+	}
+
+	private static synchronized void invalidateLocalLists() {
+		listGeneration = getListGeneration() + 1;
+		writeGeneration(LIST_GENERATION_KEY, listGeneration);
+	}
+
+	private static synchronized void clearLocal() {
+		PersonCache.clear();
+		generation = getGeneration() + 1;
+		writeGeneration(GENERATION_KEY, generation);
+		invalidateLocalLists();
+	}
+
+	/**
+	 * Incrmente la version serveur aprs une criture de ce client. Si la nouvelle version
+	 * n'est pas la suivante de celle connue, un autre client a crit entre-temps : tout est invalid.
+	 */
+	private static synchronized void written() {
+		try {
+			Document counter = MongoConnection.getConnection().getCollection("counters").findOneAndUpdate(
+					Filters.eq("_id", VERSION_COUNTER), Updates.inc("value", 1L),
+					new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+			long current = ((Number) counter.get("value")).longValue();
+
+			if (current != getVersion() + 1) {
+				clearLocal();
+			}
+
+			setVersion(current);
+			checkedAt = System.currentTimeMillis();
+			writes++;
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Compare la version serveur  la version connue (au plus une fois par CHECK_MILLIS)
+	 * et invalide tout le cache (ainsi que PersonCache) si elles diffrent.
+	 *
+	 * La lecture de la version serveur se fait dans un thread spar, hors du verrou : l'appelant
+	 * n'attend jamais MongoDB et le contenu local reste servi pendant la vrification.
+	 * Sans serveur, le cache reste servi tel quel.
+	 */
+	public static void checkVersion() {
+		synchronized (PersonStore.class) {
+			long now = System.currentTimeMillis();
+
+			if (checking || now - checkedAt < CHECK_MILLIS) {
+				return;
+			}
+
+			checking = true;
+			checkedAt = now;
+		}
+
+		Thread checker = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				refreshVersion();
+			}
+		}, "cache-version");
+		checker.setDaemon(true);
+		checker.start();
+	}
+
+	private static void refreshVersion() {
+		long writesBefore;
+
+		synchronized (PersonStore.class) {
+			writesBefore = writes;
+		}
+
+		try {
+			Document counter = MongoConnection.getConnection().getCollection("counters").find(Filters.eq("_id", VERSION_COUNTER)).first();
+			long current = counter == null ? 0 : ((Number) counter.get("value")).longValue();
+
+			synchronized (PersonStore.class) {
+				// Une criture de ce client pendant la lecture a dj mis la version  jour (voir written())
+				if (writes == writesBefore && current != getVersion()) {
+					clearLocal();
+					setVersion(current);
+				}
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+		finally {
+			synchronized (PersonStore.class) {
+				checking = false;
+			}
+		}
+	}
+
+	private static synchronized long getVersion() {
+		if (version < 0) {
+			version = readGeneration(VERSION_KEY);
+		}
+
+		return version;
+	}
+
+	private static synchronized void setVersion(long value) {
+		version = value;
+		writeGeneration(VERSION_KEY, value);
+	}
+
+	private static synchronized long getGeneration() {
+		if (generation < 0) {
+			generation = readGeneration(GENERATION_KEY);
+		}
+
+		return generation;
+	}
+
+	private static synchronized long getListGeneration() {
+		if (listGeneration < 0) {
+			listGeneration = readGeneration(LIST_GENERATION_KEY);
+		}
+
+		return listGeneration;
+	}
+
+	private static long readGeneration(String name) {
+		DatabaseEntry value = new DatabaseEntry();
+
+		if (BerkeleyConnection.getConnection().get(null, key(name), value, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
+			return LongBinding.entryToLong(value);
+		}
+
+		return 0;
+	}
+
+	private static void writeGeneration(String name, long value) {
+		DatabaseEntry entry = new DatabaseEntry();
+		LongBinding.longToEntry(value, entry);
+		BerkeleyConnection.getConnection().put(null, key(name), entry);
+	}
+
+	private static String listKey(String filterText, int limit) {
+		return "q:" + NameKey.of(filterText) + ":" + limit;
+	}
+
+	private static DatabaseEntry key(String name) {
+		DatabaseEntry entry = new DatabaseEntry();
+		StringBinding.stringToEntry(name, entry);
+		return entry;
+	}
+
+	private static TupleOutput header(long gen) {
+		TupleOutput output = new TupleOutput();
+		output.writeLong(gen);
+		return output;
+	}
+
+	private static void write(String name, TupleOutput output) {
+		BerkeleyConnection.getConnection().put(null, key(name), new DatabaseEntry(output.toByteArray()));
+	}
+
+	/**
+	 * @return la valeur positionne aprs la gnration, ou null si absente ou prime
+	 */
+	private static TupleInput read(String name, long expectedGeneration) {
+		DatabaseEntry value = new DatabaseEntry();
+		TupleInput input = null;
+
+		if (BerkeleyConnection.getConnection().get(null, key(name), value, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+			input = new TupleInput(value.getData());
+
+			if (input.readLong() != expectedGeneration) {
+				input = null;
+			}
+		}
+
+		return input;
+	}
+
+	private static void writeBytes(TupleOutput output, byte[] data) {
+		output.writeInt(data == null ? -1 : data.length);
+
+		if (data != null) {
+			output.writeFast(data);
+		}
+	}
+
+	private static byte[] readBytes(TupleInput input) {
+		int length = input.readInt();
+		byte[] data = null;
+
+		if (length >= 0) {
+			data = new byte[length];
+			input.readFast(data);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Srialisation compacte d'une fiche (sans la photo complte)
+	 */
+	private static class PersonBinding extends TupleBinding<Person> {
+
+		@Override
+		public Person entryToObject(TupleInput input) {
+			Person person = new Person();
+			long id = input.readLong();
+			person.setId(id < 0 ? null : id);
+			person.setName(input.readString());
+			person.setCodeName(input.readString());
+			person.setStatus(input.readString());
+			person.setDateOfBirth(input.readString());
+
+			int size = input.readInt();
+
+			if (size >= 0) {
+				List<String> connexions = new ArrayList<String>(size);
+
+				for (int i = 0; i < size; i++) {
+					connexions.add(input.readString());
+				}
+
+				person.setConnexions(connexions);
+			}
+
+			person.setThumbnailData(readBytes(input));
+
+			// Fiche crite avant l'ajout de l'indicateur de photo : considre absente (relue du serveur)
+			if (input.available() == 0) {
+				return null;
+			}
+
+			person.setPhotoStored(input.readBoolean());
+
+			return person;
+		}
+
+		@Override
+		public void objectToEntry(Person person, TupleOutput output) {
+			output.writeLong(person.getId() == null ? -1 : person.getId());
+			output.writeString(person.getName());
+			output.writeString(person.getCodeName());
+			output.writeString(person.getStatus());
+			output.writeString(person.getDateOfBirth());
+			output.writeInt(person.getConnexions() == null ? -1 : person.getConnexions().size());
+
+			if (person.getConnexions() != null) {
+				for (String connexion : person.getConnexions()) {
+					output.writeString(connexion);
+				}
+			}
+
+			writeBytes(output, person.getThumbnailData());
+			output.writeBoolean(person.isPhotoStored());
+		}
+	}
+}
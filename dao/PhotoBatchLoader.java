@@ -0,0 +1,261 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Chargement group des photos d'une page de rsultats.
+ *
+ * Au lieu d'ouvrir un GridFSDownloadStream par personne (une requte sur fs.files
+ * puis une lecture des chunks, pour chaque ligne), on fait :
+ *  1. une seule requte sur "images.files" pour toutes les mtadonnes de la page
+ *  2. une requte sur "images.chunks" par groupe de fichiers, trie par (files_id, n),
+ *     ce qui utilise l'index unique cr par GridFS.
+ *
+ * Les groupes peuvent tre lus en parallle (paralllisme born).
+ *
+ * forEach() offre une lecture en continu : chaque photo est assemble, chunk par chunk,
+ * dans un ByteBuffer d'une rserve (BufferPool) puis passe au lecteur, et le tampon est
+ * rutilis pour les photos suivantes (et les pages suivantes).
+ */
+public class PhotoBatchLoader {
+	private static final int FILES_PER_GROUP = 16;
+	private static final int MAX_PARALLELISM = 4;
+	private static ExecutorService executor;
+
+	/**
+	 * Reoit les photos lues par forEach()
+	 */
+	public interface PhotoReader {
+		/**
+		 * @param filename nom du fichier GridFS
+		 * @param data contenu de la photo, entre position et limit. Le tampon est rendu  la
+		 *             rserve au retour de la mthode : il ne doit pas tre conserv.
+		 */
+		void read(String filename, ByteBuffer data) throws Exception;
+	}
+
+	/**
+	 * Retourne les photos associes aux noms de fichiers donns.
+	 * Si un fichier a plusieurs rvisions, la plus rcente est retourne
+	 * (mme comportement que GridFSBucket.openDownloadStream(filename)).
+	 *
+	 * @param connection base de donnes
+	 * @param bucketName nom du bucket GridFS (ex: "images")
+	 * @param filenames noms des fichiers  charger
+	 * @param parallelism nombre maximal de requtes de chunks simultanes (1 = squentiel)
+	 * @return dictionnaire nom de fichier -> contenu. Les fichiers introuvables sont absents.
+	 */
+	public static Map<String, byte[]> load(MongoDatabase connection, String bucketName, Collection<String> filenames, int parallelism) throws Exception {
+		Map<String, byte[]> images = new HashMap<String, byte[]>();
+
+		if (filenames.isEmpty()) {
+			return images;
+		}
+
+		// 1. Mtadonnes : une seule requte pour toute la page
+		final Map<Object, String> nameById = new HashMap<Object, String>();
+		final Map<Object, Integer> lengthById = new HashMap<Object, Integer>();
+		List<Object> ids = findLatest(connection.getCollection(bucketName + ".files"), filenames, nameById, lengthById);
+
+		if (ids.isEmpty()) {
+			return images;
+		}
+
+		// 2. Chunks : regroups par fichier, un groupe par requte
+		final MongoCollection<Document> chunks = connection.getCollection(bucketName + ".chunks");
+		List<List<Object>> groups = partition(ids, parallelism);
+		List<Map<Object, byte[]>> results = new ArrayList<Map<Object, byte[]>>();
+
+		if (groups.size() == 1) {
+			results.add(readChunks(chunks, groups.get(0), lengthById));
+		}
+		else {
+			List<Future<Map<Object, byte[]>>> futures = new ArrayList<Future<Map<Object, byte[]>>>();
+
+			for (final List<Object> group : groups) {
+				futures.add(getExecutor().submit(new Callable<Map<Object, byte[]>>() {
+
+					@Override
+					public Map<Object, byte[]> call() throws Exception {
+						return readChunks(chunks, group, lengthById);
+					}
+				}));
+			}
+
+			for (Future<Map<Object, byte[]>> future : futures) {
+				results.add(future.get());
+			}
+		}
+
+		for (Map<Object, byte[]> result : results) {
+			for (Entry<Object, byte[]> entry : result.entrySet()) {
+				images.put(nameById.get(entry.getKey()), entry.getValue());
+			}
+		}
+
+		return images;
+	}
+
+	/**
+	 * Lit en continu les photos associes aux noms de fichiers donns (rvision la plus rcente),
+	 * une  la fois, dans des tampons de la rserve donne.
+	 *
+	 * @param connection base de donnes
+	 * @param bucketName nom du bucket GridFS (ex: "images")
+	 * @param filenames noms des fichiers  lire
+	 * @param pool rserve de tampons (ex: BufferPool.forPhotos())
+	 * @param reader reoit chaque photo trouve
+	 */
+	public static void forEach(MongoDatabase connection, String bucketName, Collection<String> filenames, BufferPool pool, PhotoReader reader) throws Exception {
+		if (filenames.isEmpty()) {
+			return;
+		}
+
+		Map<Object, String> nameById = new HashMap<Object, String>();
+		Map<Object, Integer> lengthById = new HashMap<Object, Integer>();
+		List<Object> ids = findLatest(connection.getCollection(bucketName + ".files"), filenames, nameById, lengthById);
+
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		MongoCollection<Document> chunks = connection.getCollection(bucketName + ".chunks");
+		Object currentId = null;
+		ByteBuffer buffer = null;
+
+		try {
+			for (Document chunk : chunks.find(Filters.in("files_id", ids))
+										.projection(Projections.include("files_id", "n", "data"))
+										.sort(Sorts.ascending("files_id", "n"))) {
+				Object id = chunk.get("files_id");
+
+				if (!id.equals(currentId)) {
+					if (buffer != null) {
+						deliver(nameById.get(currentId), buffer, reader);
+						pool.release(buffer);
+						buffer = null;
+					}
+
+					currentId = id;
+					buffer = pool.acquire(lengthById.get(id));
+				}
+
+				byte[] part = ((Binary) chunk.get("data")).getData();
+				buffer.put(part, 0, Math.min(part.length, buffer.remaining()));
+			}
+
+			if (buffer != null) {
+				deliver(nameById.get(currentId), buffer, reader);
+			}
+		}
+		finally {
+			if (buffer != null) {
+				pool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Lit, en une seule requte, les mtadonnes des fichiers (rvision la plus rcente de chacun)
+	 *
+	 * @return les ids des fichiers  lire
+	 */
+	private static List<Object> findLatest(MongoCollection<Document> files, Collection<String> filenames,
+			Map<Object, String> nameById, Map<Object, Integer> lengthById) {
+		Map<String, Object> latestIdByName = new HashMap<String, Object>();
+
+		for (Document f : files.find(Filters.in("filename", filenames))
+							   .projection(Projections.include("_id", "filename", "length"))
+							   .sort(Sorts.ascending("uploadDate"))) {
+			latestIdByName.put(f.getString("filename"), f.get("_id"));
+			nameById.put(f.get("_id"), f.getString("filename"));
+			lengthById.put(f.get("_id"), ((Number) f.get("length")).intValue());
+		}
+
+		return new ArrayList<Object>(latestIdByName.values());
+	}
+
+	private static void deliver(String filename, ByteBuffer buffer, PhotoReader reader) throws Exception {
+		buffer.flip();
+		reader.read(filename, buffer);
+	}
+
+	/**
+	 * Lit, en une requte, tous les chunks des fichiers donns et les assemble.
+	 */
+	private static Map<Object, byte[]> readChunks(MongoCollection<Document> chunks, List<Object> ids, Map<Object, Integer> lengthById) {
+		Map<Object, byte[]> data = new HashMap<Object, byte[]>();
+		Map<Object, Integer> offsets = new HashMap<Object, Integer>();
+
+		for (Object id : ids) {
+			data.put(id, new byte[lengthById.get(id)]);
+			offsets.put(id, 0);
+		}
+
+		for (Document chunk : chunks.find(Filters.in("files_id", ids))
+									.projection(Projections.include("files_id", "n", "data"))
+									.sort(Sorts.ascending("files_id", "n"))) {
+			Object id = chunk.get("files_id");
+			byte[] part = ((Binary) chunk.get("data")).getData();
+			byte[] target = data.get(id);
+			int offset = offsets.get(id);
+			int length = Math.min(part.length, target.length - offset);
+
+			System.arraycopy(part, 0, target, offset, length);
+			offsets.put(id, offset + length);
+		}
+
+		return data;
+	}
+
+	private static List<List<Object>> partition(List<Object> ids, int parallelism) {
+		int groupCount = Math.max(1, Math.min(Math.min(parallelism, MAX_PARALLELISM), (ids.size() + FILES_PER_GROUP - 1) / FILES_PER_GROUP));
+		List<List<Object>> groups = new ArrayList<List<Object>>();
+
+		for (int i = 0; i < groupCount; i++) {
+			groups.add(new ArrayList<Object>());
+		}
+
+		for (int i = 0; i < ids.size(); i++) {
+			groups.get(i % groupCount).add(ids.get(i));
+		}
+
+		return groups;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(MAX_PARALLELISM, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "photo-loader");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		return executor;
+	}
+}
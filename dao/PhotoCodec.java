@@ -0,0 +1,182 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodage des photos compltes avant leur sauvegarde dans GridFS.
+ *
+ * Le mme codec est utilis par l'interface (PanelPersonSave) et par l'importation en lot,
+ * afin que toutes les photos aient le mme format. Le codec par dfaut se configure avec
+ * les proprits systme suivantes :
+ *  - persinteret.photo.format   "jpg" (dfaut) ou "png"
+ *  - persinteret.photo.quality  qualit JPEG vise, entre 0 et 1 (dfaut 0.85)
+ *  - persinteret.photo.maxBytes taille maximale d'une photo encode (dfaut 40960, 0 = aucune)
+ *
+ * Si une photo dpasse la taille maximale, la qualit est rduite par paliers jusqu'
+ * MIN_QUALITY, puis l'image est rduite (en dimensions) au besoin.
+ */
+public class PhotoCodec {
+	public static final float MIN_QUALITY = 0.4f;
+	private static final float QUALITY_STEP = 0.1f;
+	private static final double SCALE_STEP = 0.8;
+	private static final int MIN_SIDE = 64;
+
+	private static PhotoCodec defaultCodec = new PhotoCodec(
+			System.getProperty("persinteret.photo.format", "jpg"),
+			Float.parseFloat(System.getProperty("persinteret.photo.quality", "0.85")),
+			Integer.getInteger("persinteret.photo.maxBytes", 40 * 1024));
+
+	private final String format;
+	private final float quality;
+	private final int maxBytes;
+
+	/**
+	 * @param format "jpg" ou "png"
+	 * @param quality qualit vise (JPEG seulement), entre 0 et 1
+	 * @param maxBytes taille maximale d'une photo encode, 0 pour aucune limite
+	 */
+	public PhotoCodec(String format, float quality, int maxBytes) {
+		this.format = format.toLowerCase();
+		this.quality = quality;
+		this.maxBytes = maxBytes;
+	}
+
+	public static synchronized PhotoCodec getDefault() {
+		return defaultCodec;
+	}
+
+	public static synchronized void setDefault(PhotoCodec codec) {
+		defaultCodec = codec;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public float getQuality() {
+		return quality;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Rencode une photo dj encode (tout format lisible par ImageIO)
+	 *
+	 * @return la photo dans le format du codec, ou null si elle est absente ou illisible
+	 */
+	public byte[] encode(byte[] imageData) {
+		byte[] encoded = null;
+
+		if (imageData != null) {
+			try {
+				encoded = encode(ImageIO.read(new ByteArrayInputStream(imageData)));
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * @param image image dcode
+	 * @return la photo dans le format du codec, ou null si l'image est absente
+	 */
+	public byte[] encode(BufferedImage image) {
+		byte[] encoded = null;
+
+		if (image != null) {
+			try {
+				boolean lossy = !format.equals("png");
+				BufferedImage current = lossy ? toRgb(image) : image;
+				float q = quality;
+				encoded = write(current, format, q);
+
+				while (maxBytes > 0 && encoded.length > maxBytes && lossy && q - QUALITY_STEP >= MIN_QUALITY) {
+					q -= QUALITY_STEP;
+					encoded = write(current, format, q);
+				}
+
+				while (maxBytes > 0 && encoded.length > maxBytes && Math.min(current.getWidth(), current.getHeight()) * SCALE_STEP >= MIN_SIDE) {
+					current = scale(current, SCALE_STEP);
+					encoded = write(current, format, q);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return encoded;
+	}
+
+	/**
+	 * crit une image avec ImageIO, en prcisant la qualit pour les formats avec perte
+	 */
+	static byte[] write(BufferedImage image, String format, float quality) throws Exception {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+		ImageWriter writer = writers.next();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ImageOutputStream ios = ImageIO.createImageOutputStream(baos);
+
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+
+			if (param.canWriteCompressed() && !format.equals("png")) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				param.setCompressionQuality(quality);
+			}
+
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		finally {
+			writer.dispose();
+			ios.close();
+		}
+
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Le JPEG ne supporte pas la transparence : l'image est copie en RGB au besoin
+	 */
+	private static BufferedImage toRgb(BufferedImage image) {
+		if (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+			return image;
+		}
+
+		BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = rgb.createGraphics();
+		g2d.drawImage(image, 0, 0, null);
+		g2d.dispose();
+
+		return rgb;
+	}
+
+	private static BufferedImage scale(BufferedImage image, double factor) {
+		int width = (int) (image.getWidth() * factor);
+		int height = (int) (image.getHeight() * factor);
+		BufferedImage target = new BufferedImage(width, height, image.getType() == 0 ? BufferedImage.TYPE_INT_ARGB : image.getType());
+		Graphics2D g2d = target.createGraphics();
+		g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g2d.drawImage(image, 0, 0, width, height, null);
+		g2d.dispose();
+
+		return target;
+	}
+}
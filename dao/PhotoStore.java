@@ -0,0 +1,183 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Stockage des photos par contenu (content-addressed) dans le bucket GridFS "images".
+ *
+ * Le nom de fichier GridFS d'une photo est le hash SHA-256 de son contenu : deux personnes
+ * ayant la mme photo partagent le mme fichier, et resauvegarder une photo inchange
+ * ne tlverse rien. La fiche d'une personne contient le hash de sa photo (champ "photo").
+ *
+ * La table de rfrences (collection "photos") contient un document par photo stocke :
+ *    {_id: hash, owners: [ids des personnes], length: taille, ready: fichier tlvers}
+ * L'ensemble owners rend acquire() et release() idempotents (un renvoi ne compte pas deux fois).
+ * Le fichier GridFS est supprim lorsque sa dernire rfrence est libre.
+ */
+public class PhotoStore {
+	public static final String FIELD = "photo";
+	private static final String COLLECTION = "photos";
+	private static final String BUCKET = "images";
+
+	/**
+	 * @return le hash SHA-256 (hexadcimal) de la photo, ou null si elle est absente
+	 */
+	public static String hashOf(byte[] imageData) {
+		String hash = null;
+
+		if (imageData != null) {
+			try {
+				StringBuilder hex = new StringBuilder();
+
+				for (byte b : MessageDigest.getInstance("SHA-256").digest(imageData)) {
+					hex.append(String.format("%02x", b));
+				}
+
+				hash = hex.toString();
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Ajoute une rfrence vers une photo. La photo n'est tlverse que si elle
+	 * n'est pas dj stocke.
+	 *
+	 * Une nouvelle rfrence est cre avec ready: false, et ne passe  true qu'une fois le
+	 * fichier tlvers : si le tlversement choue (ou si le processus s'arrte entre les
+	 * deux), le prochain acquire() vrifie la prsence du fichier et le tlverse au besoin.
+	 *
+	 * @param hash hash de la photo (voir hashOf())
+	 * @param owner id de la personne
+	 * @param imageData contenu de la photo
+	 * @return true si la photo a d tre tlverse
+	 */
+	public static boolean acquire(String hash, Object owner, byte[] imageData) {
+		Document before = getCollection().findOneAndUpdate(Filters.eq("_id", hash),
+				Updates.combine(Updates.addToSet("owners", owner), Updates.setOnInsert("length", imageData.length), Updates.setOnInsert("ready", false)),
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+		// Les rfrences antrieures  ce champ ont toutes leur fichier
+		boolean upload = before == null || (Boolean.FALSE.equals(before.get("ready")) && getBucket().find(Filters.eq("filename", hash)).first() == null);
+
+		if (upload) {
+			getBucket().uploadFromStream(hash, new ByteArrayInputStream(imageData));
+		}
+
+		if (before == null || Boolean.FALSE.equals(before.get("ready"))) {
+			getCollection().updateOne(Filters.eq("_id", hash), Updates.set("ready", true));
+		}
+
+		return upload;
+	}
+
+	/**
+	 * Retire une rfrence vers une photo, et supprime la photo si plus personne ne l'utilise
+	 *
+	 * @param hash hash de la photo
+	 * @param owner id de la personne
+	 */
+	public static void release(String hash, Object owner) {
+		MongoCollection<Document> refs = getCollection();
+		Document after = refs.findOneAndUpdate(Filters.eq("_id", hash), Updates.pull("owners", owner),
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+
+		if (after != null && ((List<?>) after.get("owners")).isEmpty()) {
+			// Les fichiers sont lists avant la suppression de la rfrence : un acquire() qui recre
+			// la rfrence ensuite tlverse un nouveau fichier, qui ne fait pas partie de la liste
+			GridFSBucket bucket = getBucket();
+			List<ObjectId> files = new ArrayList<ObjectId>();
+
+			for (GridFSFile file : bucket.find(Filters.eq("filename", hash))) {
+				files.add(file.getObjectId());
+			}
+
+			// La condition sur owners vite de supprimer une photo racquise entre-temps
+			if (refs.deleteOne(Filters.and(Filters.eq("_id", hash), Filters.size("owners", 0))).getDeletedCount() > 0) {
+				for (ObjectId id : files) {
+					bucket.delete(id);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Retire la rfrence de la photo d'une fiche supprime. Une photo antrieure au stockage
+	 * par contenu (nomme d'aprs la personne, sans rfrence) est supprime directement.
+	 *
+	 * @param person fiche (champs name, hasPhoto et photo)
+	 * @param owner id de la personne
+	 */
+	public static void release(Document person, Object owner) {
+		String hash = person.getString(FIELD);
+		String filename = filenameOf(person);
+
+		if (hash != null) {
+			release(hash, owner);
+		}
+		else if (filename != null) {
+			GridFSBucket bucket = getBucket();
+
+			for (GridFSFile file : bucket.find(Filters.eq("filename", filename))) {
+				bucket.delete(file.getObjectId());
+			}
+		}
+	}
+
+	/**
+	 * @return nombre de photos stockes (distinctes), lu dans la table de rfrences
+	 */
+	public static long getPhotoCount() {
+		return getCollection().count();
+	}
+
+	/**
+	 * Supprime toutes les photos et la table de rfrences
+	 */
+	public static void clear() {
+		getCollection().drop();
+		getBucket().drop();
+	}
+
+	/**
+	 * Nom de fichier GridFS de la photo d'une fiche. Les fiches sauvegardes avant le
+	 * stockage par contenu ont une photo nomme d'aprs la personne.
+	 *
+	 * @return le nom de fichier, ou null si la fiche n'a pas de photo
+	 */
+	public static String filenameOf(Document person) {
+		String filename = person.getString(FIELD);
+
+		if (filename == null && Boolean.TRUE.equals(person.get("hasPhoto"))) {
+			filename = person.getString("name");
+		}
+
+		return filename;
+	}
+
+	private static GridFSBucket getBucket() {
+		return GridFSBuckets.create(MongoConnection.getConnection(), BUCKET);
+	}
+
+	private static MongoCollection<Document> getCollection() {
+		return MongoConnection.getConnection().getCollection(COLLECTION);
+	}
+}
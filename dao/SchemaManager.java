@@ -0,0 +1,389 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Dclaration et cration, une seule fois au dmarrage, de tous les index MongoDB
+ * utiliss par les DAO (au lieu d'un createIndex aprs chaque criture).
+ *
+ * ensureSchema() :
+ *  - cre les index manquants en arrire-plan (background)
+ *  - signale les index existants incompatibles (mme nom ou mme cl, mais cl ou options diffrentes)
+ *  - complte les fiches antrieures aux champs ajouts depuis (id, nameKey, date numrique, hasPhoto)
+ *
+ * printReport() affiche quel index est choisi par chacune des requtes principales (explain).
+ * Il n'est excut au dmarrage que sur demande (-Dpersinteret.schema.report=true).
+ */
+public class SchemaManager {
+	private static final List<IndexSpec> INDEXES = new ArrayList<IndexSpec>();
+	private static final Map<String, Query> QUERIES = new LinkedHashMap<String, Query>();
+	private static final int BACKFILL_BATCH_SIZE = 1000;
+
+	static {
+		// Fiches
+		declare("personnes", "name_unique", new Document("name", 1), true, null);
+		declare("personnes", "id_unique", new Document("id", 1), true, new Document("id", new Document("$type", "number")));
+		declare("personnes", "nameKey_name", new Document(NameKey.FIELD, 1).append("name", 1), false, null);
+		declare("personnes", "dateOfBirth", new Document("dateOfBirth", 1), false, null);
+		// Statut puis connexions : sert les requtes par statut (prfixe) et le dcompte des connexions
+		// d'une personne "Libre" vers les personnes disparues ou mortes (prochaine cible) sans lire les fiches
+		declare("personnes", "status_connexions", new Document("status", 1).append("connexions", 1), false, null);
+		// Multicl : retrait des connexions inverses d'une personne supprime (voir PersonDAO.delete())
+		declare("personnes", "connexions", new Document("connexions", 1), false, null);
+		// Fiches en attente dans l'outbox (voir OutboxRelay) : l'index ne contient qu'elles
+		declare("personnes", "outbox_seq", new Document("outbox.seq", 1), false, new Document("outbox.seq", new Document("$exists", true)));
+
+		// Photos (GridFS)
+		declare("images.files", "filename_uploadDate", new Document("filename", 1).append("uploadDate", 1), false, null);
+		declare("images.chunks", "files_id_n", new Document("files_id", 1).append("n", 1), true, null);
+
+		// Requtes principales, pour le rapport d'utilisation des index
+		QUERIES.put("liste par prfixe", new Query("personnes",
+				new Document(NameKey.FIELD, new Document("$gte", "a").append("$lt", "b")),
+				new Document(NameKey.FIELD, 1).append("name", 1)));
+		QUERIES.put("fiche par id", new Query("personnes", new Document("id", 1L), null));
+		QUERIES.put("plus jeune", new Query("personnes",
+				new Document("dateOfBirth", new Document("$gte", Long.MIN_VALUE)),
+				new Document("dateOfBirth", -1)));
+		QUERIES.put("par statut", new Query("personnes", new Document("status", "Libre"), null));
+		QUERIES.put("libres connaissant un disparu", new Query("personnes",
+				new Document("status", "Libre").append("connexions", new Document("$in", new ArrayList<String>())), null));
+		QUERIES.put("photos d'une page", new Query("images.files",
+				new Document("filename", new Document("$in", new ArrayList<String>())),
+				new Document("uploadDate", 1)));
+	}
+
+	/**
+	 * Cre les index manquants et complte les anciennes fiches.  appeler au dmarrage,
+	 * ainsi qu'aprs une suppression de collection (deleteAll()).
+	 * Les index incompatibles ne sont pas modifis; ils sont signals par une exception,  la fin.
+	 */
+	public static synchronized void ensureSchema() {
+		try {
+			MongoDatabase connection = MongoConnection.getConnection();
+			List<String> incompatible = new ArrayList<String>();
+
+			for (IndexSpec spec : INDEXES) {
+				ensureIndex(connection.getCollection(spec.collection), spec, incompatible);
+			}
+
+			backfillIds(connection.getCollection("personnes"));
+			backfillNameKeys(connection.getCollection("personnes"));
+			backfillDates(connection.getCollection("personnes"));
+			backfillPhotos(connection.getCollection("personnes"), connection.getCollection("images.files"));
+
+			if (!incompatible.isEmpty()) {
+				throw new IllegalStateException("Index incompatibles : " + incompatible);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Les fiches antrieures aux id numriques n'en ont pas (elles seraient rinsres  leur
+	 * premire modification) : un id leur est attribu, par lots d'un seul bulkWrite. La
+	 * condition sur le type de l'id rend l'opration sans effet une fois faite.
+	 */
+	private static void backfillIds(MongoCollection<Document> people) {
+		Document missing = new Document("id", new Document("$not", new Document("$type", "number")));
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		int count = 0;
+
+		for (Document doc : people.find(missing).projection(Projections.include("_id"))) {
+			writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("_id", doc.get("_id")), missing),
+					Updates.set("id", IdGenerator.forPeople().nextId())));
+
+			if (writes.size() == BACKFILL_BATCH_SIZE) {
+				count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+				writes.clear();
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+		}
+
+		if (count > 0) {
+			PersonStore.clear();
+		}
+	}
+
+	/**
+	 * Les fiches antrieures  la cl de recherche normalise n'en ont pas : elles
+	 * n'apparatraient dans aucune recherche par prfixe.
+	 */
+	private static void backfillNameKeys(MongoCollection<Document> people) {
+		Document missing = new Document(NameKey.FIELD, new Document("$exists", false));
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		int count = 0;
+
+		for (Document doc : people.find(missing).projection(Projections.include("name"))) {
+			writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("_id", doc.get("_id")), missing),
+					Updates.set(NameKey.FIELD, NameKey.of(doc.getString("name")))));
+
+			if (writes.size() == BACKFILL_BATCH_SIZE) {
+				count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+				writes.clear();
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+		}
+
+		if (count > 0) {
+			PersonStore.invalidateLists();
+		}
+	}
+
+	/**
+	 * Les fiches antrieures aux dates numriques ont une date de naissance texte (YYYY-MM-DD).
+	 * Elle est convertie en jours depuis 1970-01-01, comme les nouvelles fiches, pour tre
+	 * prise en compte par l'index {dateOfBirth: 1} et par StatsCounters.aggregate().
+	 * Une date invalide est laisse telle quelle (elle n'est compte nulle part).
+	 */
+	private static void backfillDates(MongoCollection<Document> people) {
+		Document text = new Document("$type", "string");
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+		int count = 0;
+
+		for (Document doc : people.find(new Document("dateOfBirth", text)).projection(Projections.include("dateOfBirth"))) {
+			Long days = StatsCounters.epochDay(doc);
+
+			if (days != null) {
+				writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("_id", doc.get("_id")), Filters.eq("dateOfBirth", doc.get("dateOfBirth"))),
+						Updates.set("dateOfBirth", days)));
+			}
+
+			if (writes.size() == BACKFILL_BATCH_SIZE) {
+				count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+				writes.clear();
+			}
+		}
+
+		if (!writes.isEmpty()) {
+			count += people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+		}
+
+		if (count > 0) {
+			PersonStore.invalidateLists();
+		}
+	}
+
+	/**
+	 * Les fiches antrieures  la table de rfrences n'ont ni hasPhoto ni rfrence : leur photo
+	 * est le fichier GridFS nomm d'aprs la personne, que PhotoStore.filenameOf() ne retrouve
+	 * qu'avec hasPhoto. L'indicateur est dduit, par lots, de la prsence de ce fichier
+	 * (un seul find $in sur l'index {filename: 1, uploadDate: 1} par lot).
+	 */
+	private static void backfillPhotos(MongoCollection<Document> people, MongoCollection<Document> files) {
+		Document missing = new Document("hasPhoto", new Document("$exists", false)).append(PhotoStore.FIELD, new Document("$exists", false));
+		List<String> names = new ArrayList<String>();
+		int count = 0;
+
+		for (Document doc : people.find(missing).projection(Projections.include("name"))) {
+			names.add(doc.getString("name"));
+
+			if (names.size() == BACKFILL_BATCH_SIZE) {
+				count += backfillPhotos(people, files, missing, names);
+				names.clear();
+			}
+		}
+
+		if (!names.isEmpty()) {
+			count += backfillPhotos(people, files, missing, names);
+		}
+
+		// Les fiches dj en cache local n'ont pas l'indicateur de photo  jour, ni le compteur de photos
+		if (count > 0) {
+			PersonStore.clear();
+			StatsCounters.verify();
+		}
+	}
+
+	private static int backfillPhotos(MongoCollection<Document> people, MongoCollection<Document> files, Document missing, List<String> names) {
+		Set<String> withPhoto = new HashSet<String>();
+		List<WriteModel<Document>> writes = new ArrayList<WriteModel<Document>>();
+
+		for (Document file : files.find(Filters.in("filename", names)).projection(Projections.include("filename"))) {
+			withPhoto.add(file.getString("filename"));
+		}
+
+		for (String name : names) {
+			writes.add(new UpdateOneModel<Document>(Filters.and(Filters.eq("name", name), missing),
+					Updates.set("hasPhoto", withPhoto.contains(name))));
+		}
+
+		return people.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+	}
+
+	/**
+	 * Retourne, pour chaque requte dclare, le ou les index choisis par le planificateur
+	 * (ou COLLSCAN si aucun index n'est utilis)
+	 */
+	public static Map<String, String> explainQueries() {
+		Map<String, String> report = new LinkedHashMap<String, String>();
+		MongoDatabase connection = MongoConnection.getConnection();
+
+		for (Map.Entry<String, Query> entry : QUERIES.entrySet()) {
+			Query query = entry.getValue();
+			Document find = new Document("find", query.collection).append("filter", query.filter).append("limit", 1);
+
+			if (query.sort != null) {
+				find.append("sort", query.sort);
+			}
+
+			try {
+				Document explain = connection.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+				Document planner = (Document) explain.get("queryPlanner");
+				List<String> indexes = new ArrayList<String>();
+				findIndexNames((Document) planner.get("winningPlan"), indexes);
+				report.put(entry.getKey(), indexes.isEmpty() ? "COLLSCAN" : indexes.toString());
+			}
+			catch (Exception e) {
+				report.put(entry.getKey(), "? (" + e.getMessage() + ")");
+			}
+		}
+
+		return report;
+	}
+
+	/**
+	 * Affiche le rapport d'utilisation des index dans la console
+	 */
+	public static void printReport() {
+		for (Map.Entry<String, String> entry : explainQueries().entrySet()) {
+			System.out.println("[schema] " + entry.getKey() + " : " + entry.getValue());
+		}
+	}
+
+	/**
+	 * Cre l'index s'il n'existe ni sous son nom ni sous sa cl. Un index existant (mme nom
+	 * ou mme cl) doit avoir la cl, l'unicit et le filtre partiel attendus, sinon il est
+	 * ajout  incompatible.
+	 */
+	private static void ensureIndex(MongoCollection<Document> collection, IndexSpec spec, List<String> incompatible) {
+		Document existing = null;
+
+		for (Document index : collection.listIndexes()) {
+			if (spec.name.equals(index.getString("name")) || sameKeys(spec.keys, (Document) index.get("key"))) {
+				existing = index;
+			}
+		}
+
+		if (existing == null) {
+			IndexOptions options = new IndexOptions().name(spec.name).unique(spec.unique).background(true);
+
+			if (spec.partialFilter != null) {
+				options.partialFilterExpression(spec.partialFilter);
+			}
+
+			collection.createIndex(spec.keys, options);
+		}
+		else if (!sameKeys(spec.keys, (Document) existing.get("key"))
+				|| spec.unique != Boolean.TRUE.equals(existing.get("unique"))
+				|| !String.valueOf(spec.partialFilter).equals(String.valueOf(existing.get("partialFilterExpression")))) {
+			incompatible.add(collection.getNamespace().getFullName() + " " + existing.get("name")
+					+ " (cl " + existing.get("key") + ", unique=" + existing.get("unique")
+					+ ", filtre " + existing.get("partialFilterExpression") + ") au lieu de " + spec.name
+					+ " (cl " + spec.keys + ", unique=" + spec.unique + ", filtre " + spec.partialFilter + ")");
+		}
+	}
+
+	/**
+	 * Parcourt un plan d'excution (inputStage/inputStages) et en retire les noms d'index
+	 */
+	@SuppressWarnings("unchecked")
+	private static void findIndexNames(Document stage, List<String> names) {
+		if (stage == null) {
+			return;
+		}
+
+		if (stage.get("indexName") != null) {
+			names.add(stage.getString("indexName"));
+		}
+
+		findIndexNames((Document) stage.get("inputStage"), names);
+
+		if (stage.get("inputStages") != null) {
+			for (Document child : (List<Document>) stage.get("inputStages")) {
+				findIndexNames(child, names);
+			}
+		}
+	}
+
+	/**
+	 * Compare deux cls d'index (mmes champs, mme ordre, mme direction). Le serveur peut
+	 * retourner les directions en double plutt qu'en entier.
+	 */
+	private static boolean sameKeys(Document expected, Document actual) {
+		if (actual == null || expected.size() != actual.size()) {
+			return false;
+		}
+
+		List<String> expectedFields = new ArrayList<String>(expected.keySet());
+		List<String> actualFields = new ArrayList<String>(actual.keySet());
+		boolean same = expectedFields.equals(actualFields);
+
+		for (int i = 0; same && i < expectedFields.size(); i++) {
+			Object a = expected.get(expectedFields.get(i));
+			Object b = actual.get(actualFields.get(i));
+			same = a instanceof Number && b instanceof Number
+					? ((Number) a).doubleValue() == ((Number) b).doubleValue()
+					: String.valueOf(a).equals(String.valueOf(b));
+		}
+
+		return same;
+	}
+
+	private static void declare(String collection, String name, Document keys, boolean unique, Document partialFilter) {
+		INDEXES.add(new IndexSpec(collection, name, keys, unique, partialFilter));
+	}
+
+	private static class IndexSpec {
+		private final String collection;
+		private final String name;
+		private final Document keys;
+		private final boolean unique;
+		private final Document partialFilter;
+
+		private IndexSpec(String collection, String name, Document keys, boolean unique, Document partialFilter) {
+			this.collection = collection;
+			this.name = name;
+			this.keys = keys;
+			this.unique = unique;
+			this.partialFilter = partialFilter;
+		}
+	}
+
+	private static class Query {
+		private final String collection;
+		private final Document filter;
+		private final Document sort;
+
+		private Query(String collection, Document filter, Document sort) {
+			this.collection = collection;
+			this.filter = filter;
+			this.sort = sort;
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Compteurs statistiques maintenus de faon incrmentale.
+ *
+ * Un seul document {_id: "global"} de la collection "stats" contient :
+ *  - total          nombre de fiches
+ *  - status.<s>     nombre de fiches par statut (Libre, Prison, Disparu, Mort)
+ *  - photos         nombre de fiches ayant une photo
+ *  - dobCount       nombre de dates de naissance valides
+ *  - dobDaysSum     somme des dates de naissance (en jours depuis 1970-01-01, comme dans les fiches)
+ *
+ *  - appliedSeqs    numros des dernires entres d'outbox appliques (voir applyOnce())
+ *  - rev            incrment par chaque criture (voir verify())
+ *
+ * saveAll(), delete(), deleteAll() et le relais de l'outbox (pour save()) le mettent  jour
+ * avec un seul $inc atomique, sous OutboxRelay.LOCK, ce qui rend la lecture du tableau de
+ * bord O(1), peu importe le nombre de fiches. La mme agrgation $facet (aggregate()) sert
+ *  initialiser les compteurs et  les vrifier.
+ */
+public class StatsCounters {
+	private static final String COLLECTION = "stats";
+	private static final String ID = "global";
+	private static final int APPLIED_SEQS = 1000;
+
+	/**
+	 * Applique la diffrence entre l'ancienne et la nouvelle version d'une fiche.
+	 *
+	 * @param before ancienne fiche (null pour une insertion)
+	 * @param after nouvelle fiche (null pour une suppression)
+	 */
+	public static void apply(Document before, Document after) {
+		Document inc = new Document();
+		diff(inc, before, after);
+
+		if (!inc.isEmpty()) {
+			read();
+			getCollection().updateOne(Filters.eq("_id", ID), new Document("$inc", inc.append("rev", 1L)));
+		}
+	}
+
+	/**
+	 * Applique, en un seul $inc, l'insertion d'un lot de nouvelles fiches
+	 *
+	 * @param inserted fiches insres
+	 */
+	public static void applyAll(List<Document> inserted) {
+		Document inc = new Document();
+
+		for (Document after : inserted) {
+			diff(inc, null, after);
+		}
+
+		if (!inc.isEmpty()) {
+			read();
+			getCollection().updateOne(Filters.eq("_id", ID), new Document("$inc", inc.append("rev", 1L)));
+		}
+	}
+
+	/**
+	 * Version idempotente de apply(), pour le relais de l'outbox : le $inc n'est appliqu
+	 * que si le numro de l'entre ne fait pas partie des APPLIED_SEQS derniers numros
+	 * appliqus (ajout dans la mme criture). Un lot rejou ne compte donc pas deux fois.
+	 *
+	 * @param seq numro de l'entre d'outbox
+	 * @param before tat dj appliqu (null pour une insertion)
+	 * @param after nouvel tat
+	 * @return l'criture  passer  write(), ou null si les compteurs ne changent pas
+	 */
+	public static WriteModel<Document> applyOnce(long seq, Document before, Document after) {
+		Document inc = new Document();
+		diff(inc, before, after);
+
+		return inc.isEmpty() ? null : new UpdateOneModel<Document>(Filters.and(Filters.eq("_id", ID), Filters.ne("appliedSeqs", seq)),
+				new Document("$inc", inc).append("$push", new Document("appliedSeqs",
+						new Document("$each", Arrays.asList(seq)).append("$slice", -APPLIED_SEQS))));
+	}
+
+	/**
+	 * Envoie en un seul bulkWrite les critures obtenues avec applyOnce(). "rev" est incrment
+	 *  chaque lot, mme si aucun compteur ne change : un lot rejou (dj compt) modifie
+	 * quand mme l'tat appliqu des fiches, ce que verify() doit savoir.
+	 */
+	public static void write(List<WriteModel<Document>> writes) {
+		List<WriteModel<Document>> all = new ArrayList<WriteModel<Document>>(writes);
+		all.add(new UpdateOneModel<Document>(Filters.eq("_id", ID), Updates.inc("rev", 1L)));
+
+		// Le document doit exister : une criture garde par appliedSeqs ne peut pas le crer
+		read();
+		getCollection().bulkWrite(all, new BulkWriteOptions().ordered(true));
+	}
+
+	/**
+	 * Cumule dans inc la diffrence de compteurs entre deux versions d'une fiche
+	 */
+	private static void diff(Document inc, Document before, Document after) {
+		add(inc, "total", (after == null ? 0 : 1) - (before == null ? 0 : 1));
+		add(inc, "photos", hasPhoto(after) - hasPhoto(before));
+
+		String oldStatus = before == null ? null : before.getString("status");
+		String newStatus = after == null ? null : after.getString("status");
+
+		if (oldStatus == null || !oldStatus.equals(newStatus)) {
+			if (oldStatus != null) {
+				add(inc, "status." + oldStatus, -1);
+			}
+
+			if (newStatus != null) {
+				add(inc, "status." + newStatus, 1);
+			}
+		}
+
+		Long oldDays = epochDay(before);
+		Long newDays = epochDay(after);
+		add(inc, "dobCount", (newDays == null ? 0 : 1) - (oldDays == null ? 0 : 1));
+		add(inc, "dobDaysSum", (newDays == null ? 0 : newDays) - (oldDays == null ? 0 : oldDays));
+	}
+
+	/**
+	 * Remet tous les compteurs  zro (suppression totale)
+	 */
+	public static void reset() {
+		Document previous = getCollection().findOneAndDelete(Filters.eq("_id", ID));
+		getCollection().insertOne(new Document("_id", ID).append("total", 0L)
+				.append("rev", (previous == null ? 0 : getLong(previous, "rev")) + 1));
+	}
+
+	/**
+	 * @return le document de compteurs, reconstruit  partir des fiches s'il n'existe pas encore
+	 */
+	public static Document read() {
+		Document stats = getCollection().find(Filters.eq("_id", ID)).first();
+
+		if (stats == null) {
+			stats = rebuild();
+		}
+
+		return stats;
+	}
+
+	public static long getPeopleCount() {
+		return getLong(read(), "total");
+	}
+
+	public static long getPhotoCount() {
+		return getLong(read(), "photos");
+	}
+
+	/**
+	 * @return pourcentage (0  100) de fiches au statut "Libre"
+	 */
+	public static int getFreeRatio() {
+		return getFreeRatio(read());
+	}
+
+	public static int getFreeRatio(Document stats) {
+		long total = getLong(stats, "total");
+		Long free = getCountsByStatus(stats).get("Libre");
+
+		return total == 0 || free == null ? 0 : (int) Math.round(free * 100.0 / total);
+	}
+
+	/**
+	 * L'ge moyen est l'cart entre aujourd'hui et la date de naissance moyenne.
+	 *
+	 * @return ge moyen en annes, arrondi
+	 */
+	public static int getAverageAge() {
+		return getAverageAge(read());
+	}
+
+	public static int getAverageAge(Document stats) {
+		long count = getLong(stats, "dobCount");
+		int age = 0;
+
+		if (count > 0) {
+			double averageDay = getLong(stats, "dobDaysSum") / (double) count;
+			age = (int) Math.round((LocalDate.now().toEpochDay() - averageDay) / 365.2425);
+		}
+
+		return age;
+	}
+
+	/**
+	 * @param stats document de compteurs (voir read())
+	 * @return nombre de fiches par statut (les statuts  0 sont omis)
+	 */
+	public static Map<String, Long> getCountsByStatus(Document stats) {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		Document status = (Document) stats.get("status");
+
+		if (status != null) {
+			for (String name : status.keySet()) {
+				long count = getLong(status, name);
+
+				if (count != 0) {
+					counts.put(name, count);
+				}
+			}
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Compare les compteurs aux valeurs calcules par le serveur (voir aggregate()) et les
+	 * remplace s'ils divergent. Appel priodiquement par le relais de l'outbox, jamais 
+	 * l'affichage du tableau de bord.
+	 *
+	 * L'agrgation s'excute sans verrou. Seul le remplacement se fait sous OutboxRelay.LOCK,
+	 * et seulement si "rev" n'a pas boug depuis la lecture des compteurs : une criture
+	 * concurrente (relais, saveAll(), delete()) incrmente "rev", et la vrification est
+	 * alors simplement remise au tour suivant.
+	 *
+	 * @return true si les compteurs taient cohrents
+	 */
+	public static boolean verify() {
+		Document stats = read();
+		Document expected = aggregate();
+		boolean consistent = true;
+
+		for (String field : Arrays.asList("total", "photos", "dobCount", "dobDaysSum")) {
+			consistent = consistent && getLong(stats, field) == getLong(expected, field);
+		}
+
+		consistent = consistent && getCountsByStatus(stats).equals(getCountsByStatus(expected));
+
+		if (!consistent) {
+			synchronized (OutboxRelay.LOCK) {
+				// Une entre en attente peut dj tre compte (lot interrompu) : rien n'est remplac
+				if (!OutboxRelay.hasPending()) {
+					expected.append("rev", getLong(stats, "rev") + 1);
+
+					if (stats.get("appliedSeqs") != null) {
+						expected.append("appliedSeqs", stats.get("appliedSeqs"));
+					}
+
+					getCollection().replaceOne(Filters.and(Filters.eq("_id", ID), Filters.eq("rev", stats.get("rev"))), expected);
+				}
+			}
+		}
+
+		return consistent;
+	}
+
+	/**
+	 * Calcule les compteurs avec aggregate(), si le document n'a jamais t initialis.
+	 * Le document n'est cr que s'il n'existe toujours pas (un autre client peut l'avoir cr).
+	 */
+	public static Document rebuild() {
+		Document stats = aggregate();
+
+		synchronized (OutboxRelay.LOCK) {
+			Document fields = new Document(stats);
+			fields.remove("_id");
+			getCollection().updateOne(Filters.eq("_id", ID), new Document("$setOnInsert", fields), new UpdateOptions().upsert(true));
+		}
+
+		return getCollection().find(Filters.eq("_id", ID)).first();
+	}
+
+	/**
+	 * Calcule tous les compteurs en une seule agrgation ($facet) excute par le serveur.
+	 * Pour une fiche en attente dans l'outbox, seul l'tat dj appliqu ("applied") est compt;
+	 * une fiche insre mais pas encore applique (applied: null) est ignore.
+	 *
+	 * @return un document de compteurs (mme forme que celui de la collection "stats")
+	 */
+	@SuppressWarnings("unchecked")
+	static Document aggregate() {
+		MongoCollection<Document> people = MongoConnection.getConnection().getCollection("personnes");
+		Document own = new Document("status", "$status").append("dateOfBirth", "$dateOfBirth").append("hasPhoto", "$hasPhoto");
+		Document state = new Document("$cond", Arrays.asList(
+				new Document("$eq", Arrays.asList(new Document("$type", "$" + OutboxRelay.APPLIED), "missing")),
+				own, "$" + OutboxRelay.APPLIED));
+		Document facets = new Document()
+			.append("byStatus", Arrays.asList(
+					new Document("$group", new Document("_id", "$s.status").append("count", new Document("$sum", 1)))))
+			.append("photos", Arrays.asList(
+					new Document("$match", new Document("s.hasPhoto", true)),
+					new Document("$count", "count")))
+			.append("birth", Arrays.asList(
+					new Document("$match", new Document("s.dateOfBirth", new Document("$type", "number"))),
+					new Document("$group", new Document("_id", null).append("count", new Document("$sum", 1))
+							.append("days", new Document("$sum", "$s.dateOfBirth")))));
+
+		Document result = people.aggregate(Arrays.asList(
+				new Document("$project", new Document("_id", 0).append("s", state)),
+				new Document("$match", new Document("s", new Document("$type", "object"))),
+				new Document("$facet", facets))).first();
+		Document stats = new Document("_id", ID).append("total", 0L);
+		Document status = new Document();
+		long total = 0;
+
+		if (result != null) {
+			for (Document row : (List<Document>) result.get("byStatus")) {
+				long count = getLong(row, "count");
+				total += count;
+
+				if (row.getString("_id") != null) {
+					status.append(row.getString("_id"), count);
+				}
+			}
+
+			for (Document row : (List<Document>) result.get("photos")) {
+				stats.append("photos", getLong(row, "count"));
+			}
+
+			for (Document row : (List<Document>) result.get("birth")) {
+				stats.append("dobCount", getLong(row, "count")).append("dobDaysSum", getLong(row, "days"));
+			}
+		}
+
+		stats.append("total", total);
+
+		if (!status.isEmpty()) {
+			stats.append("status", status);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Date de naissance d'une fiche en jours depuis 1970-01-01. Elle est normalement dj
+	 * sauvegarde sous cette forme; les anciennes fiches (YYYY-MM-DD) sont converties.
+	 *
+	 * @return le nombre de jours, ou null si la date est absente ou invalide
+	 */
+	static Long epochDay(Document person) {
+		Long days = null;
+
+		if (person != null && person.get("dateOfBirth") instanceof Number) {
+			days = ((Number) person.get("dateOfBirth")).longValue();
+		}
+		else if (person != null && person.get("dateOfBirth") instanceof String) {
+			try {
+				days = LocalDate.parse(person.getString("dateOfBirth")).toEpochDay();
+			}
+			catch (Exception e) {
+				days = null;
+			}
+		}
+
+		return days;
+	}
+
+	private static int hasPhoto(Document person) {
+		return person != null && Boolean.TRUE.equals(person.get("hasPhoto")) ? 1 : 0;
+	}
+
+	private static void add(Document inc, String field, long delta) {
+		if (delta != 0) {
+			inc.append(field, getLong(inc, field) + delta);
+		}
+	}
+
+	private static long getLong(Document doc, String field) {
+		Object value = doc.get(field);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	private static MongoCollection<Document> getCollection() {
+		MongoDatabase connection = MongoConnection.getConnection();
+		return connection.getCollection(COLLECTION);
+	}
+}
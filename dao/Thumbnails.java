@@ -0,0 +1,67 @@
+package ca.qc.cvm.dba.persinteret.dao;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Gnration des vignettes sauvegardes directement dans la fiche d'une personne.
+ *
+ * Une vignette de 48x48 en JPEG pse typiquement 1  2 Ko, contre ~100 Ko pour la
+ * photo complte de 250x250 en PNG. Les listes n'ont donc jamais  lire GridFS.
+ */
+public class Thumbnails {
+	public static final int SIZE = 48;
+	private static final float QUALITY = 0.75f;
+
+	/**
+	 * Cre la vignette d'une photo
+	 *
+	 * @param imageData photo complte (tout format lisible par ImageIO)
+	 * @return la vignette en JPEG, ou null si la photo est absente ou illisible
+	 */
+	public static byte[] create(byte[] imageData) {
+		byte[] thumbnail = null;
+
+		if (imageData != null) {
+			try {
+				thumbnail = create(ImageIO.read(new ByteArrayInputStream(imageData)));
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return thumbnail;
+	}
+
+	/**
+	 * Cre la vignette d'une image dj dcode (vite un second dcodage lors d'une importation)
+	 *
+	 * @param source image dcode
+	 * @return la vignette en JPEG, ou null si l'image est absente
+	 */
+	public static byte[] create(BufferedImage source) {
+		byte[] thumbnail = null;
+
+		if (source != null) {
+			try {
+				BufferedImage target = new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g2d = target.createGraphics();
+				g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g2d.drawImage(source, 0, 0, SIZE, SIZE, null);
+				g2d.dispose();
+
+				thumbnail = PhotoCodec.write(target, "jpg", QUALITY);
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return thumbnail;
+	}
+}
@@ -0,0 +1,65 @@
+package ca.qc.cvm.dba.persinteret.entity;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Instantan (immuable) de toutes les statistiques affiches dans le tableau de bord
+ */
+public final class DashboardStats {
+	private final long peopleCount;
+	private final long photoCount;
+	private final int freeRatio;
+	private final int averageAge;
+	private final String youngestPerson;
+	private final String nextTargetName;
+	private final Map<String, Long> countsByStatus;
+
+	public DashboardStats(long peopleCount, long photoCount, int freeRatio, int averageAge,
+						  String youngestPerson, String nextTargetName, Map<String, Long> countsByStatus) {
+		this.peopleCount = peopleCount;
+		this.photoCount = photoCount;
+		this.freeRatio = freeRatio;
+		this.averageAge = averageAge;
+		this.youngestPerson = youngestPerson;
+		this.nextTargetName = nextTargetName;
+		this.countsByStatus = Collections.unmodifiableMap(new HashMap<String, Long>(countsByStatus));
+	}
+
+	public long getPeopleCount() {
+		return peopleCount;
+	}
+
+	public long getPhotoCount() {
+		return photoCount;
+	}
+
+	public int getFreeRatio() {
+		return freeRatio;
+	}
+
+	public int getAverageAge() {
+		return averageAge;
+	}
+
+	public String getYoungestPerson() {
+		return youngestPerson;
+	}
+
+	public String getNextTargetName() {
+		return nextTargetName;
+	}
+
+	/**
+	 * @return nombre de fiches par statut (Libre, Prison, Disparu, Mort)
+	 */
+	public Map<String, Long> getCountsByStatus() {
+		return countsByStatus;
+	}
+
+	public String toString() {
+		return String.format("%d fiches, %d photos, %d%% libres, %d ans, plus jeune: %s, cible: %s",
+				peopleCount, photoCount, freeRatio, averageAge, youngestPerson, nextTargetName);
+	}
+}
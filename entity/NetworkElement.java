@@ -0,0 +1,70 @@
+package ca.qc.cvm.dba.persinteret.entity;
+
+/**
+ * lment (immuable) du rseau de connexions d'une personne : une personne (Node)
+ * ou une connexion entre deux personnes (Edge).
+ */
+public abstract class NetworkElement {
+
+	private NetworkElement() {
+	}
+
+	/**
+	 * Personne atteinte dans le rseau
+	 */
+	public static final class Node extends NetworkElement {
+		private final String name;
+		private final String status;
+		private final int depth;
+
+		public Node(String name, String status, int depth) {
+			this.name = name;
+			this.status = status;
+			this.depth = depth;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return nombre de connexions  franchir depuis la personne de dpart (0 pour elle-mme)
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		public String toString() {
+			return name + " (" + status + ", " + depth + ")";
+		}
+	}
+
+	/**
+	 * Connexion CONNAIT entre deux personnes (les connexions vont dans les deux sens)
+	 */
+	public static final class Edge extends NetworkElement {
+		private final String from;
+		private final String to;
+
+		public Edge(String from, String to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public String getFrom() {
+			return from;
+		}
+
+		public String getTo() {
+			return to;
+		}
+
+		public String toString() {
+			return from + " - " + to;
+		}
+	}
+}
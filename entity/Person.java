@@ -1,5 +1,7 @@
 package ca.qc.cvm.dba.persinteret.entity;
 
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.List;
 
 
@@ -10,7 +12,10 @@ public class Person {
 	private String codeName;
 	private String dateOfBirth;
 	private List<String> connexions;
-	private byte[] imageData;
+	private Photo photo;
+	private byte[] thumbnailData;
+	private boolean photoStored;
+	private boolean photoRemoved;
 	
 	public Person() {
 		
@@ -22,7 +27,7 @@ public class Person {
 		this.dateOfBirth = dob;
 		this.status = status;
 		this.connexions = connexions;
-		this.imageData = img;
+		setImageData(img);
 	}
 	
 	public String getDateOfBirth() {
@@ -33,6 +38,28 @@ public class Person {
 		this.dateOfBirth = dateOfBirth;
 	}
 
+	/**
+	 * @return la date de naissance, ou null si elle est absente ou n'est pas au format YYYY-MM-DD
+	 */
+	public LocalDate getBirthDate() {
+		LocalDate date = null;
+		
+		if (dateOfBirth != null) {
+			try {
+				date = LocalDate.parse(dateOfBirth.trim());
+			}
+			catch (DateTimeParseException e) {
+				date = null;
+			}
+		}
+		
+		return date;
+	}
+
+	public void setBirthDate(LocalDate birthDate) {
+		this.dateOfBirth = birthDate == null ? null : birthDate.toString();
+	}
+
 	public List<String> getConnexions() {
 		return connexions;
 	}
@@ -49,8 +76,35 @@ public class Person {
 		this.codeName = codeName;
 	}
 
+	/**
+	 * @return la photo complte, lue  la demande au premier appel (voir Photo), ou null
+	 */
 	public byte[] getImageData() {
-		return imageData;
+		return photo == null ? null : photo.getData();
+	}
+
+	/**
+	 * @return true si la photo complte est dj en mmoire (getImageData() ne fera aucune lecture)
+	 */
+	public boolean isImageLoaded() {
+		return photo != null && photo.isLoaded();
+	}
+
+	/**
+	 * Libre la mmoire de la photo complte ; elle sera relue au besoin
+	 */
+	public void releaseImageData() {
+		if (photo != null) {
+			photo.release();
+		}
+	}
+
+	public Photo getPhoto() {
+		return photo;
+	}
+
+	public void setPhoto(Photo photo) {
+		this.photo = photo;
 	}
 
 	public String getName() {
@@ -78,7 +132,46 @@ public class Person {
 	}
 
 	public void setImageData(byte[] imageData) {
-		this.imageData = imageData;
+		this.photo = imageData == null ? null : new Photo(imageData);
+	}
+
+	/**
+	 * Vignette (JPEG 48x48) sauvegarde dans la fiche, toujours disponible dans les listes
+	 */
+	public byte[] getThumbnailData() {
+		return thumbnailData;
+	}
+
+	public void setThumbnailData(byte[] thumbnailData) {
+		this.thumbnailData = thumbnailData;
+	}
+
+	/**
+	 * @return true si une photo est sauvegarde pour cette fiche (mme si getPhoto() est null)
+	 */
+	public boolean isPhotoStored() {
+		return photoStored;
+	}
+
+	public void setPhotoStored(boolean photoStored) {
+		this.photoStored = photoStored;
+	}
+
+	/**
+	 * Retire la photo :  la sauvegarde, la photo et la vignette seront effaces.
+	 * Sans cet appel, une fiche existante sans photo charge garde sa photo sauvegarde.
+	 */
+	public void removePhoto() {
+		this.photo = null;
+		this.photoRemoved = true;
+	}
+
+	public boolean isPhotoRemoved() {
+		return photoRemoved;
+	}
+
+	public void setPhotoRemoved(boolean photoRemoved) {
+		this.photoRemoved = photoRemoved;
 	}
 
 	public String toString() {
@@ -0,0 +1,84 @@
+package ca.qc.cvm.dba.persinteret.entity;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * Photo complte d'une personne, charge  la demande.
+ *
+ * Une photo cre  partir d'octets (nouvelle photo, pas encore sauvegarde) les garde
+ * en mmoire. Une photo cre avec un Loader ne lit ses octets qu'au premier appel de
+ * getData() ; ils sont ensuite gards par une SoftReference (librables par le GC en cas
+ * de manque de mmoire, ou explicitement avec release()) et relus au besoin.
+ */
+public class Photo {
+	private final Loader loader;
+	private final byte[] data;
+	private SoftReference<byte[]> cached;
+
+	/**
+	 * Lecture des octets d'une photo (fournie par la couche d'accs aux donnes)
+	 */
+	public interface Loader {
+		/**
+		 * @return les octets de la photo, ou null si elle n'existe pas
+		 */
+		byte[] load();
+	}
+
+	/**
+	 * @param data octets de la photo, gards en mmoire
+	 */
+	public Photo(byte[] data) {
+		this.loader = null;
+		this.data = data;
+	}
+
+	/**
+	 * @param loader lecture diffre des octets
+	 */
+	public Photo(Loader loader) {
+		this.loader = loader;
+		this.data = null;
+	}
+
+	/**
+	 * @return les octets de la photo (lus au premier appel), ou null si elle n'existe pas
+	 */
+	public synchronized byte[] getData() {
+		if (data != null) {
+			return data;
+		}
+
+		byte[] bytes = cached == null ? null : cached.get();
+
+		if (bytes == null && loader != null) {
+			bytes = loader.load();
+			cached = bytes == null ? null : new SoftReference<byte[]>(bytes);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @return true si les octets sont disponibles sans lecture
+	 */
+	public synchronized boolean isLoaded() {
+		return data != null || (cached != null && cached.get() != null);
+	}
+
+	/**
+	 * @return true pour une photo cre  partir d'octets (nouvelle photo,  sauvegarder),
+	 *         false pour une photo dj sauvegarde, lue  la demande
+	 */
+	public boolean isNew() {
+		return loader == null;
+	}
+
+	/**
+	 * Libre les octets lus (ils seront relus au prochain getData()). Sans effet sur une
+	 * photo cre  partir d'octets.
+	 */
+	public synchronized void release() {
+		cached = null;
+	}
+}
@@ -1,5 +1,7 @@
 package ca.qc.cvm.dba.persinteret.event;
 
+import java.awt.image.BufferedImage;
+
 import ca.qc.cvm.dba.persinteret.entity.Person;
 
 /**
@@ -8,14 +10,27 @@ import ca.qc.cvm.dba.persinteret.entity.Person;
  */
 public class SaveEvent extends CommonEvent {
 	private Person person;
+	private BufferedImage image;
 	
 	public SaveEvent(Person person) {
+		this(person, null);
+	}
+	
+	/**
+	 * @param image photo affiche, mise en cache une fois la sauvegarde russie
+	 */
+	public SaveEvent(Person person, BufferedImage image) {
 		super(CommonEvent.Type.Save);
 		
 		this.person = person;
+		this.image = image;
 	}
 	
 	public Person getPerson() {
 		return person;
 	}
+	
+	public BufferedImage getImage() {
+		return image;
+	}
 }
@@ -16,7 +16,9 @@ import javax.swing.UIManager;
 
 import ca.qc.cvm.dba.persinteret.app.Facade;
 import ca.qc.cvm.dba.persinteret.event.GoToEvent;
+import ca.qc.cvm.dba.persinteret.event.SaveEvent;
 import ca.qc.cvm.dba.persinteret.event.UIEvent;
+import ca.qc.cvm.dba.persinteret.view.util.ImageCache;
 
 public class FrameMain extends JFrame implements PropertyChangeListener {
 	private static final long serialVersionUID = 1L;
@@ -135,5 +137,12 @@ public class FrameMain extends JFrame implements PropertyChangeListener {
 		else if (event == UIEvent.UIType.Refresh) {
 			panels.get(currentView).resetView();
 		}
+		else if (event == UIEvent.UIType.Saved) {
+			SaveEvent saved = (SaveEvent) evt.getNewValue();
+			
+			if (saved.getImage() != null) {
+				ImageCache.put(saved.getPerson().getName(), saved.getImage());
+			}
+		}
 	}
 }
@@ -7,6 +7,7 @@ import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 
 import ca.qc.cvm.dba.persinteret.app.Facade;
+import ca.qc.cvm.dba.persinteret.entity.DashboardStats;
 import ca.qc.cvm.dba.persinteret.view.util.BackgroundPanel;
 
 public class PanelData extends CommonPanel {
@@ -18,6 +19,9 @@ public class PanelData extends CommonPanel {
 	private JLabel youngestPerson;
 	private JLabel nextTarget;
 	private JLabel avgAge;
+	private JLabel eventMetrics;
+	private JLabel cacheMetrics;
+	private JLabel outboxMetrics;
 
 	public PanelData(int width, int height) throws Exception {
 		super(width, height, true, "assets/images/background-data-menu.jpg");
@@ -61,6 +65,20 @@ public class PanelData extends CommonPanel {
 		nextTarget= super.addLabel("", 500, y, 250, 30);
 		nextTarget.setHorizontalAlignment(JLabel.CENTER);
 		nextTarget.setBorder(BorderFactory.createLineBorder(Color.WHITE));
+
+		// Mtriques d'excution : file d'vnements et cache de fiches
+		y += 80;
+		super.addLabel("vnements", 20, y, 200, 30);
+		eventMetrics = super.addLabel("", 230, y, 520, 30);
+
+		y += 40;
+		super.addLabel("Cache des fiches", 20, y, 200, 30);
+		cacheMetrics = super.addLabel("", 230, y, 520, 30);
+
+		// Les statistiques ne refltent une sauvegarde qu'une fois applique par le relais : son retard est affich
+		y += 40;
+		super.addLabel("Relais (outbox)", 20, y, 200, 30);
+		outboxMetrics = super.addLabel("", 230, y, 520, 30);
 	}
 	
 	/**
@@ -68,13 +86,17 @@ public class PanelData extends CommonPanel {
 	 */
 	@Override
 	public void resetUI() {
-		freeRatio.setText(Facade.getInstance().getFreeRatio() + "%");
-		photoCount.setText(Facade.getInstance().getPhotoCount() + "");
-		peopleCount.setText(Facade.getInstance().getPeopleCount() + "");
-		youngestPerson.setText(Facade.getInstance().getYoungestPerson());
-		nextTarget.setText(Facade.getInstance().getNextTargetName());
-		avgAge.setText(Facade.getInstance().getAverageAge() + "");
+		DashboardStats stats = Facade.getInstance().getDashboardStats();
 		
+		freeRatio.setText(stats.getFreeRatio() + "%");
+		photoCount.setText(stats.getPhotoCount() + "");
+		peopleCount.setText(stats.getPeopleCount() + "");
+		youngestPerson.setText(stats.getYoungestPerson());
+		nextTarget.setText(stats.getNextTargetName());
+		avgAge.setText(stats.getAverageAge() + "");
+		eventMetrics.setText(Facade.getInstance().getEventMetrics());
+		cacheMetrics.setText(Facade.getInstance().getPersonCacheMetrics());
+		outboxMetrics.setText(Facade.getInstance().getOutboxMetrics());
 	}
 
 }
@@ -5,9 +5,7 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.List;
 
-import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JList;
@@ -23,6 +21,8 @@ import ca.qc.cvm.dba.persinteret.entity.Person;
 import ca.qc.cvm.dba.persinteret.event.DeleteEvent;
 import ca.qc.cvm.dba.persinteret.event.GoToEvent;
 import ca.qc.cvm.dba.persinteret.view.util.BackgroundPanel;
+import ca.qc.cvm.dba.persinteret.view.util.ImageCache;
+import ca.qc.cvm.dba.persinteret.view.util.PagedPersonListModel;
 
 public class PanelList extends CommonPanel {
 	private static final long serialVersionUID = 1L;
@@ -32,7 +32,7 @@ public class PanelList extends CommonPanel {
 	private JButton editButton;
 	private JButton deleteButton;
 	
-	private List<Person> people;
+	private PagedPersonListModel model;
 
 	public PanelList(int width, int height) throws Exception {
 		super(width, height, true, "assets/images/background-log-menu.jpg");
@@ -44,7 +44,11 @@ public class PanelList extends CommonPanel {
 			
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				Facade.getInstance().processEvent(new GoToEvent(FrameMain.Views.PersonSave, people.get(peopleList.getSelectedIndex())));
+				Person person = model.getPerson(peopleList.getSelectedIndex());
+				
+				if (person != null) {
+					Facade.getInstance().processEvent(new GoToEvent(FrameMain.Views.PersonSave, person));
+				}
 			}
 		});
 		
@@ -52,8 +56,11 @@ public class PanelList extends CommonPanel {
 			
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				if (JOptionPane.showConfirmDialog(PanelList.this, "Supprimer l'entre?") == JOptionPane.OK_OPTION) {
-					Facade.getInstance().processEvent(new DeleteEvent(people.get(peopleList.getSelectedIndex())));
+				Person person = model.getPerson(peopleList.getSelectedIndex());
+				
+				if (person != null && JOptionPane.showConfirmDialog(PanelList.this, "Supprimer l'entre?") == JOptionPane.OK_OPTION) {
+					ImageCache.remove(person.getName());
+					Facade.getInstance().processEvent(new DeleteEvent(person));
 				}
 			}
 		});
@@ -81,6 +88,9 @@ public class PanelList extends CommonPanel {
 
 		peopleList = new JList<String>();
 		peopleList.setFont(new Font("Courier New", 0, 18));
+		// Taille fixe : vite que la JList demande chaque lment pour calculer sa taille
+		peopleList.setFixedCellHeight(22);
+		peopleList.setFixedCellWidth(810);
 		super.addField(new JScrollPane(peopleList), 20, 60, 830, 440);
 		peopleList.addListSelectionListener(new ListSelectionListener() {
 
@@ -106,14 +116,7 @@ public class PanelList extends CommonPanel {
 		deleteButton.setVisible(false);
 		editButton.setVisible(false);
 		peopleList.removeAll();
-		people = Facade.getInstance().getPeopleList(searchField.getText(), true, 50);
-
-		DefaultListModel<String> model = new DefaultListModel<String>();
-		
-		for (Person p : people) {
-			model.addElement(p.toString());
-		}
-		
+		model = new PagedPersonListModel(searchField.getText());
 		peopleList.setModel(model);
 	}
 
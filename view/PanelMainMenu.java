@@ -14,6 +14,7 @@ import ca.qc.cvm.dba.persinteret.event.CorrectionEvent;
 import ca.qc.cvm.dba.persinteret.event.DeleteAllEvent;
 import ca.qc.cvm.dba.persinteret.event.GoToEvent;
 import ca.qc.cvm.dba.persinteret.view.util.BackgroundPanel;
+import ca.qc.cvm.dba.persinteret.view.util.ImageCache;
 
 public class PanelMainMenu extends CommonPanel {
 	private static final long serialVersionUID = 1L;
@@ -63,6 +64,7 @@ public class PanelMainMenu extends CommonPanel {
 				int result = JOptionPane.showConfirmDialog(PanelMainMenu.this, "Voulez-vous vraiment supprimer toute la base de donnes?");
 				
 				if (result == JOptionPane.OK_OPTION) {
+					ImageCache.clear();
 					Facade.getInstance().processEvent(new DeleteAllEvent());
 				}
 			}
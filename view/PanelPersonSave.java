@@ -13,7 +13,6 @@ import java.awt.event.FocusListener;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
@@ -22,7 +21,6 @@ import java.util.List;
 import java.util.Vector;
 
 import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageOutputStream;
 import javax.swing.BorderFactory;
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
@@ -45,6 +43,7 @@ import ca.qc.cvm.dba.persinteret.app.Facade;
 import ca.qc.cvm.dba.persinteret.entity.Person;
 import ca.qc.cvm.dba.persinteret.event.SaveEvent;
 import ca.qc.cvm.dba.persinteret.view.util.BackgroundPanel;
+import ca.qc.cvm.dba.persinteret.view.util.ImageCache;
 
 public class PanelPersonSave extends CommonPanel {
 	private static final long serialVersionUID = 1L;
@@ -53,6 +52,8 @@ public class PanelPersonSave extends CommonPanel {
 	private JTextField dateOfBirthField;
 	private JComboBox<String> statusField;
 	private ImageIcon photoImg;
+	// Photo choisie depuis l'affichage du panneau (null si la photo n'a pas t change)
+	private BufferedImage newImage;
 	private JList<String> connections;
 	private JButton deleteConnectionBtn;
 	
@@ -116,6 +117,7 @@ public class PanelPersonSave extends CommonPanel {
 		                g2d.dispose();
 		                
 		                
+		            	newImage = outputImage;
 		            	photoImg = new ImageIcon(outputImage);		            	
 		            	photoImage.setIcon(photoImg);
 					} catch (IOException e1) {
@@ -252,22 +254,31 @@ public class PanelPersonSave extends CommonPanel {
 					p.setDateOfBirth(dateOfBirthField.getText());
 					p.setConnexions(connectionNames);
 					
-					BufferedImage bi = new BufferedImage(photoImg.getIconWidth(),photoImg.getIconHeight(), BufferedImage.TYPE_INT_RGB);
-					Graphics g = bi.createGraphics();
-					photoImg.paintIcon(null, g, 0,0);
-					g.dispose();
+					BufferedImage bi;
 					
-				    try {
-				    	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-				    	ImageOutputStream ios = ImageIO.createImageOutputStream(baos);
-				        ImageIO.write(bi, "png", ios);
-				        ios.close();
-				        p.setImageData(baos.toByteArray());
-				    } catch (Exception ee) {
-				    	ee.printStackTrace();
+					if (newImage != null) {
+						// Seule une nouvelle photo est encode (JPEG, avec perte) : une photo inchange
+						// garde ses octets, donc son hash, et n'est ni rencode ni renvoye
+						bi = new BufferedImage(photoImg.getIconWidth(),photoImg.getIconHeight(), BufferedImage.TYPE_INT_RGB);
+						Graphics g = bi.createGraphics();
+						photoImg.paintIcon(null, g, 0,0);
+						g.dispose();
+						
+					    p.setImageData(Facade.getInstance().encodePhoto(bi));
+					}
+					else {
+						bi = (BufferedImage) photoImg.getImage();
+						p.setPhoto(currentPerson.getPhoto());
+						p.setThumbnailData(currentPerson.getThumbnailData());
+						p.setPhotoStored(currentPerson.isPhotoStored());
+					}
+				    
+				    if (currentPerson != null) {
+				    	ImageCache.remove(currentPerson.getName());
 				    }
 				    
-					Facade.getInstance().processEvent(new SaveEvent(p));
+				    // Mise en cache une fois la sauvegarde russie (voir FrameMain, UIType.Saved)
+					Facade.getInstance().processEvent(new SaveEvent(p, bi));
 				}
 				else {
 					JOptionPane.showMessageDialog(PanelPersonSave.this, "Erreur : " + errorMsg);
@@ -294,6 +305,7 @@ public class PanelPersonSave extends CommonPanel {
 	public void resetUI() {
 		connectionNames = new ArrayList<String>();
 		deleteConnectionBtn.setEnabled(false);
+		newImage = null;
 		
 		currentPerson = Facade.getInstance().getCurrentPerson();
 		
@@ -303,8 +315,22 @@ public class PanelPersonSave extends CommonPanel {
 			codeNameField.setText(currentPerson.getCodeName());
 			dateOfBirthField.setText(currentPerson.getDateOfBirth());
 			
-			if (currentPerson.getImageData() != null) {
-				photoImg = new ImageIcon(currentPerson.getImageData());
+			// Image dj dcode lors d'une visite prcdente : ni lecture ni dcodage
+			BufferedImage image = ImageCache.get(currentPerson.getName());
+			
+			if (image == null && currentPerson.isImageLoaded()) {
+				image = ImageCache.getOrDecode(currentPerson.getName(), currentPerson.getImageData());
+			}
+			else if (image == null) {
+				image = Facade.getInstance().getPersonPhoto(currentPerson.getName());
+				
+				if (image != null) {
+					ImageCache.put(currentPerson.getName(), image);
+				}
+			}
+			
+			if (image != null) {
+				photoImg = new ImageIcon(image);
 				photoImage.setIcon(photoImg);
 				photoImage.repaint();
 			}
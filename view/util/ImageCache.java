@@ -0,0 +1,172 @@
+package ca.qc.cvm.dba.persinteret.view.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Cache partag des photos dcodes, pour les panels.
+ *
+ * La taille totale est borne en octets (pixels dcods) plutt qu'en nombre d'images :
+ * les images les moins rcemment utilises sont retires jusqu' respecter le budget.
+ * Les images sont de plus tenues par des SoftReference, que le GC peut librer en cas de
+ * manque de mmoire ; l'entre correspondante est alors retire au prochain accs.
+ *
+ * Les cls sont les noms des personnes. Le panel qui modifie ou supprime une photo
+ * doit appeler put() ou remove().
+ */
+public class ImageCache {
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private static final ReferenceQueue<BufferedImage> collected = new ReferenceQueue<BufferedImage>();
+	private static final LinkedHashMap<String, Entry> images = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private static long maxBytes = DEFAULT_MAX_BYTES;
+	private static long usedBytes;
+	private static long hits;
+	private static long misses;
+	private static long evictions;
+
+	/**
+	 * @param bytes budget total, en octets de pixels dcods
+	 */
+	public static synchronized void setMaxBytes(long bytes) {
+		maxBytes = bytes;
+		trim();
+	}
+
+	/**
+	 * @return l'image dcode, ou null si elle n'est pas (ou plus) en cache
+	 */
+	public static synchronized BufferedImage get(String name) {
+		purge();
+		Entry entry = images.get(name);
+		BufferedImage image = entry == null ? null : entry.get();
+
+		if (image == null) {
+			misses++;
+		}
+		else {
+			hits++;
+		}
+
+		return image;
+	}
+
+	/**
+	 * Retourne l'image en cache ou,  dfaut, dcode les octets donns et les met en cache
+	 *
+	 * @param name nom de la personne
+	 * @param data photo encode (peut tre null)
+	 * @return l'image dcode, ou null si data est null ou illisible
+	 */
+	public static BufferedImage getOrDecode(String name, byte[] data) {
+		BufferedImage image = get(name);
+
+		if (image == null && data != null) {
+			try {
+				image = ImageIO.read(new ByteArrayInputStream(data));
+
+				if (image != null) {
+					put(name, image);
+				}
+			}
+			catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		return image;
+	}
+
+	public static synchronized void put(String name, BufferedImage image) {
+		purge();
+		long weight = weightOf(image);
+		remove(name);
+
+		if (weight <= maxBytes) {
+			images.put(name, new Entry(name, image, weight));
+			usedBytes += weight;
+			trim();
+		}
+	}
+
+	public static synchronized void remove(String name) {
+		Entry entry = images.remove(name);
+
+		if (entry != null) {
+			usedBytes -= entry.weight;
+		}
+	}
+
+	public static synchronized void clear() {
+		images.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * @return rsum des compteurs, pour affichage
+	 */
+	public static synchronized String getStats() {
+		purge();
+
+		return String.format("%d images, %d/%d Ko, %d succs, %d checs, %d victions",
+				images.size(), usedBytes / 1024, maxBytes / 1024, hits, misses, evictions);
+	}
+
+	/**
+	 * Retire les images les moins rcemment utilises jusqu' respecter le budget
+	 */
+	private static void trim() {
+		Iterator<Map.Entry<String, Entry>> it = images.entrySet().iterator();
+
+		while (usedBytes > maxBytes && it.hasNext()) {
+			usedBytes -= it.next().getValue().weight;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Retire les entres dont l'image a t libre par le GC
+	 */
+	private static void purge() {
+		Entry entry = (Entry) collected.poll();
+
+		while (entry != null) {
+			if (images.get(entry.name) == entry) {
+				remove(entry.name);
+				evictions++;
+			}
+
+			entry = (Entry) collected.poll();
+		}
+	}
+
+	/**
+	 * @return taille approximative des pixels dcods, en octets
+	 */
+	private static long weightOf(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+
+		return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+	}
+
+	private static class Entry extends SoftReference<BufferedImage> {
+		private final String name;
+		private final long weight;
+
+		private Entry(String name, BufferedImage image, long weight) {
+			super(image, collected);
+			this.name = name;
+			this.weight = weight;
+		}
+	}
+}
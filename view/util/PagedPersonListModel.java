@@ -0,0 +1,249 @@
+package ca.qc.cvm.dba.persinteret.view.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.swing.AbstractListModel;
+import javax.swing.SwingWorker;
+
+import ca.qc.cvm.dba.persinteret.app.Facade;
+import ca.qc.cvm.dba.persinteret.entity.Person;
+
+/**
+ * Modle de liste virtuel : seules les pages visibles sont charges, en arrire-plan
+ * (hors du thread de Swing), au fur et  mesure du dfilement.
+ *
+ * Les pages sont demandes par curseur (nom de la dernire personne de la page prcdente)
+ * plutt que par skip. Seules les maxPages pages les plus rcemment utilises sont gardes
+ * en mmoire. Pour atteindre une page loigne dont le curseur est inconnu, le curseur est
+ * obtenu par un skip sur l'index  partir du curseur connu le plus proche : un seul nom est
+ * transfr, peu importe la distance.
+ *
+ * Les curseurs ne sont gards que pour les pages en mmoire (et la suivante) ainsi qu'une
+ * page sur CURSOR_SAMPLE, ce qui borne leur nombre tout en gardant les sauts courts.
+ *
+ * Un premier saut vers la fin d'une longue liste n'a pourtant aucun curseur proche : des
+ * repres (premier nom de chaque groupe de prfixe, et sa position, voir
+ * Facade.getPeopleAnchors()) sont donc chargs une fois en arrire-plan. Le skip part du
+ * curseur ou du repre le plus proche, et reste ainsi born par la taille d'un groupe.
+ *
+ * Toutes les mthodes doivent tre appeles dans le thread de Swing.
+ */
+public class PagedPersonListModel extends AbstractListModel<String> {
+	private static final long serialVersionUID = 1L;
+	private static final String LOADING = "...";
+	private static final int CURSOR_SAMPLE = 10;
+
+	private final String filterText;
+	private final int pageSize;
+	private final Map<Integer, List<Person>> pages;
+	private final TreeMap<Integer, String> cursors;
+	private final TreeMap<Integer, String> anchors;
+	private final Set<Integer> loading;
+	private int size;
+
+	public PagedPersonListModel(String filterText) {
+		this(filterText, 100, 20);
+	}
+
+	/**
+	 * @param filterText prfixe du nom
+	 * @param pageSize nombre de personnes par page
+	 * @param maxPages nombre maximal de pages gardes en mmoire
+	 */
+	public PagedPersonListModel(String filterText, int pageSize, final int maxPages) {
+		this.filterText = filterText;
+		this.pageSize = pageSize;
+		this.pages = new LinkedHashMap<Integer, List<Person>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, List<Person>> eldest) {
+				return size() > maxPages;
+			}
+		};
+		this.cursors = new TreeMap<Integer, String>();
+		this.cursors.put(0, null);
+		this.anchors = new TreeMap<Integer, String>();
+		this.loading = new HashSet<Integer>();
+
+		loadSize();
+	}
+
+	@Override
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		Person person = getPerson(index);
+
+		if (person == null) {
+			if (!pages.containsKey(index / pageSize)) {
+				requestPage(index / pageSize);
+			}
+
+			return LOADING;
+		}
+
+		return person.toString();
+	}
+
+	/**
+	 * @return la personne  cette position, ou null si sa page n'est pas (encore) charge
+	 */
+	public Person getPerson(int index) {
+		List<Person> page = pages.get(index / pageSize);
+		int offset = index % pageSize;
+
+		return page != null && offset < page.size() ? page.get(offset) : null;
+	}
+
+	private void loadSize() {
+		new SwingWorker<Long, Void>() {
+
+			@Override
+			protected Long doInBackground() throws Exception {
+				return Facade.getInstance().getPeopleCount(filterText);
+			}
+
+			@Override
+			protected void done() {
+				try {
+					size = (int) Math.min(get(), Integer.MAX_VALUE);
+
+					if (size > 0) {
+						fireIntervalAdded(PagedPersonListModel.this, 0, size - 1);
+					}
+
+					// Une liste courte est toujours  moins de CURSOR_SAMPLE pages d'un curseur
+					if (size > CURSOR_SAMPLE * pageSize) {
+						loadAnchors();
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	private void loadAnchors() {
+		new SwingWorker<Map<String, Long>, Void>() {
+
+			@Override
+			protected Map<String, Long> doInBackground() throws Exception {
+				return Facade.getInstance().getPeopleAnchors(filterText);
+			}
+
+			@Override
+			protected void done() {
+				try {
+					long position = 0;
+
+					for (Map.Entry<String, Long> anchor : get().entrySet()) {
+						if (position > Integer.MAX_VALUE) {
+							break;
+						}
+
+						anchors.put((int) position, anchor.getKey());
+						position += anchor.getValue();
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	private void requestPage(final int page) {
+		if (loading.contains(page)) {
+			return;
+		}
+
+		loading.add(page);
+		final int knownPage = cursors.floorKey(page);
+		final String knownCursor = cursors.get(knownPage);
+		// Le curseur de la page est le dernier nom de la page prcdente,  la position lastIndex
+		final int lastIndex = page * pageSize - 1;
+		final Map.Entry<Integer, String> anchor = knownPage < page ? anchors.floorEntry(lastIndex) : null;
+		final boolean fromAnchor = anchor != null && lastIndex - anchor.getKey() < (page - knownPage) * pageSize - 1;
+
+		new SwingWorker<List<Person>, Void>() {
+			private String cursor = knownCursor;
+
+			@Override
+			protected List<Person> doInBackground() throws Exception {
+				if (fromAnchor) {
+					cursor = Facade.getInstance().getPeopleNameFrom(filterText, anchor.getValue(), lastIndex - anchor.getKey());
+
+					if (cursor == null) {
+						return new ArrayList<Person>();
+					}
+				}
+				else if (knownPage < page) {
+					cursor = Facade.getInstance().getPeopleNameAt(filterText, knownCursor, (page - knownPage) * pageSize - 1);
+
+					if (cursor == null) {
+						return new ArrayList<Person>();
+					}
+				}
+
+				return Facade.getInstance().getPeoplePage(filterText, cursor, pageSize);
+			}
+
+			@Override
+			protected void done() {
+				loading.remove(page);
+
+				try {
+					List<Person> people = get();
+					pages.put(page, people);
+
+					if (cursor != null) {
+						cursors.put(page, cursor);
+					}
+
+					if (!people.isEmpty()) {
+						cursors.put(page + 1, people.get(people.size() - 1).getName());
+					}
+
+					pruneCursors();
+
+					int first = page * pageSize;
+					int last = Math.min(size, first + pageSize) - 1;
+
+					if (last >= first) {
+						fireContentsChanged(PagedPersonListModel.this, first, last);
+					}
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}.execute();
+	}
+
+	/**
+	 * Retire les curseurs qui ne sont ni chantillonns, ni utiles  une page en mmoire
+	 */
+	private void pruneCursors() {
+		Iterator<Integer> it = cursors.keySet().iterator();
+
+		while (it.hasNext()) {
+			int page = it.next();
+
+			if (page % CURSOR_SAMPLE != 0 && !pages.containsKey(page) && !pages.containsKey(page - 1)) {
+				it.remove();
+			}
+		}
+	}
+}